@@ -29,33 +29,33 @@ public class generateInheritanceStructure {
         
         String baseName = "Expression";
         List<String> types = new ArrayList<>(); 
-        types.add("Assign : Token name, Expression value"); 
+        types.add("Assign : Token name, Expression value | int depth, int slot, boolean boxed"); 
         types.add("Grouping : Expression expr"); 
         types.add("Logical : Expression left_expr, Token operator, Expression right_expr"); 
         types.add("Unary : Token operator, Expression expr");
-        types.add("Binary : Expression left_expr, Token operator, Expression right_expr");
+        types.add("Binary : Expression left_expr, Token operator, Expression right_expr | boolean numeric, Specialization state = Specialization.UNINITIALIZED");
         types.add("Ternary : Expression first_expr, Token operator1_2, Expression sec_expr, Token operator2_3, Expression third_expr"); 
         types.add("Literal : Object value"); 
-        types.add("Variable : Token name");
-        types.add("This : Token dis"); 
-        types.add("Get : Expression variable, Token name"); 
-        types.add("Set : Expression variable, Token name, Expression value"); 
-        types.add("Callable : Expression name, Token paren, List<Expression> arguments");
-        types.add("Super : Token ssup, Token name"); 
+        types.add("Variable : Token name | int depth, int slot, boolean boxed");
+        types.add("This : Token dis | int depth, int slot, boolean boxed"); 
+        types.add("Get : Expression variable, Token name | int site"); 
+        types.add("Set : Expression variable, Token name, Expression value | int site"); 
+        types.add("Callable : Expression name, Token paren, List<Expression> arguments | int site");
+        types.add("Super : Token ssup, Token name | int depth, int slot, boolean boxed, This receiver, int site"); 
     
 
         // String baseName = "Statement";
         // List<String> types = new ArrayList<>(); 
         // types.add("Print : Expression expr"); 
-        // types.add("Return : Token name, Expression expr");
+        // types.add("Return : Token name, Expression expr | boolean tail");
         // types.add("Expr : Expression expr");
-        // types.add("Var : Token name, Expression value");
-        // types.add("Block : List<Statement> statements"); 
+        // types.add("Var : Token name, Expression value | int slot, boolean boxed");
+        // types.add("Block : List<Statement> statements | int frameSize"); 
         // types.add("If : Expression ifClause, List<Statement> ifCode, List<Expression> elifClause, List<List<Statement>> elifCode, List<Statement> elseCode");
         // types.add("While : Expression whileClause, Block whileCode"); 
-        // types.add("For : Var init, Expression forClause, Expression forComp, Block forCode"); 
-        // types.add("LoxFunction : Token name, List<Token> parameters, List<Statement> funCode, FunctionType type");
-        // types.add("LoxClass : Token name, Variable parentClass, List<LoxFunction> methods");
+        // types.add("For : Var init, Expression forClause, Expression forComp, Block forCode | int frameSize"); 
+        // types.add("LoxFunction : Token name, List<Token> parameters, List<Statement> funCode, FunctionType type | int slot, int frameSize, boolean boxed, int[] boxedSlots, int[] upvalueDepths, int[] upvalueSlots");
+        // types.add("LoxClass : Token name, Variable parentClass, List<LoxFunction> methods | int slot, boolean boxed");
 
 
     
@@ -76,10 +76,14 @@ public class generateInheritanceStructure {
 
 
 
+        // Members after a '|' are filled in by the Resolver or the
+        // Interpreter, so they are left mutable and out of the constructor.
         for(String type: types) {
             String className = type.split(":")[0].trim(); 
-            String dataMembers = type.split(":")[1].trim(); 
-            writeClass(writer, className, baseName, dataMembers.split(", "));
+            String[] members = type.split(":")[1].split("\\|"); 
+            String dataMembers = members[0].trim();
+            String[] resolvedMembers = (members.length > 1) ? members[1].trim().split(", ") : new String[0];
+            writeClass(writer, className, baseName, dataMembers.split(", "), resolvedMembers);
         }
 
 
@@ -100,13 +104,16 @@ public class generateInheritanceStructure {
     }
 
 
-    private static void writeClass(FileWriter writer, String className, String baseName, String[] dataMembers) throws IOException {
+    private static void writeClass(FileWriter writer, String className, String baseName, String[] dataMembers, String[] resolvedMembers) throws IOException {
         writer.write("\n"); 
         writer.write(getIndentation() + "class " + className + " extends " + baseName + " {\n"); 
         indentation += 1; 
         for(String member: dataMembers) {
             writer.write(getIndentation() + "final " + member.trim() + ";\n");
         }
+        for(String member: resolvedMembers) {
+            writer.write(getIndentation() + member.trim() + ";\n");
+        }
         writer.write("\n");
 
 
@@ -0,0 +1,69 @@
+package lox;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/*
+ * Scanner.scanTokens, Parser.parse and Resolver.performResolution, each on
+ * its own, over generated programs from 1 KB to 10 MB. The input to every
+ * stage is produced once per trial by the stages before it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FrontEndBenchmark {
+
+    @Param({"1024", "102400", "1048576", "10485760"})
+    public int sourceBytes;
+
+    private final Context context = new Context();
+    private String source;
+    private List<Token> tokens;
+    private List<Statement> program;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        source = SourceGenerator.generate(sourceBytes);
+        tokens = new Scanner(source, context).scanTokens();
+        program = new Parser(tokens, context).parse();
+        if(context.hadError) {
+            throw new IllegalStateException("The generated program does not parse.");
+        }
+    }
+
+    @Benchmark
+    public List<Token> scan() {
+        return new Scanner(source, context).scanTokens();
+    }
+
+    @Benchmark
+    public List<Statement> parse() {
+        return new Parser(tokens, context).parse();
+    }
+
+    // Resolution only writes slots and depths into the tree, so resolving
+    // the same program again gives the same result.
+    @Benchmark
+    public Interpreter resolve() {
+        Interpreter interpreter = new Interpreter(new Context());
+        new Resolver(interpreter).performResolution(program);
+        return interpreter;
+    }
+}
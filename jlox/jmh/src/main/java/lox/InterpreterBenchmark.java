@@ -0,0 +1,76 @@
+package lox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/*
+ * Interpreter.interpret alone, on the programs under benchmarks/. Every
+ * invocation gets a freshly parsed, resolved and folded program, so the numbers
+ * leave out the front end and start from cold inline caches, as a script
+ * run does. Set -Dlox.benchmarks when not running from jlox/jmh.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InterpreterBenchmark {
+
+    @Param({"fib", "binary_trees", "method_call", "invocation", "instantiation", "properties",
+            "string_equality", "string_building", "zoo", "equality", "for_arithmetic"})
+    public String workload;
+
+    @Param({"true", "false"})
+    public boolean jit;
+
+    private String source;
+    private List<Statement> program;
+    private Interpreter interpreter;
+    private final PrintStream out = new PrintStream(OutputStream.nullOutputStream());
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        String directory = System.getProperty("lox.benchmarks", "../benchmarks");
+        source = new String(Files.readAllBytes(Paths.get(directory, workload + ".lox")), Charset.defaultCharset());
+    }
+
+    @Setup(Level.Invocation)
+    public void prepare() {
+        Context context = new Context(out, System.err);
+        context.jit = jit;
+        program = new Parser(new Scanner(source, context).scanTokens(), context).parse();
+        interpreter = new Interpreter(context);
+        new Resolver(interpreter).performResolution(program);
+        new Optimizer().optimize(program);
+        if(context.hadError) {
+            throw new IllegalStateException(workload + " does not compile.");
+        }
+    }
+
+    @Benchmark
+    public Interpreter interpret() {
+        interpreter.interpret(program);
+        return interpreter;
+    }
+}
@@ -0,0 +1,74 @@
+package lox;
+
+
+/*
+ * Builds a Lox program of roughly the requested size by repeating a unit
+ * that touches every part of the grammar: functions, classes with init and
+ * inheritance, if/elif/else, loops, strings, closures and property access.
+ * Each unit uses its own names so the Resolver sees distinct globals.
+ */
+class SourceGenerator {
+
+    static String generate(int bytes) {
+        StringBuilder source = new StringBuilder(bytes + 1024);
+        for(int i = 0; source.length() < bytes; i++) {
+            unit(source, i);
+        }
+        return source.toString();
+    }
+
+    private static void unit(StringBuilder source, int i) {
+        source.append("fun area").append(i).append("(width, height) {\n")
+              .append("    var result = width * height + 0.5;\n")
+              .append("    if (result > 100) {\n")
+              .append("        result = result - 1;\n")
+              .append("    } elif (result < 0) {\n")
+              .append("        result = -result;\n")
+              .append("    } else {\n")
+              .append("        result = result + 1;\n")
+              .append("    }\n")
+              .append("    while (result > 1000) {\n")
+              .append("        result = result / 2;\n")
+              .append("    }\n")
+              .append("    return result;\n")
+              .append("}\n\n");
+
+        source.append("fun counter").append(i).append("() {\n")
+              .append("    var count = 0;\n")
+              .append("    fun next() {\n")
+              .append("        count = count + 1;\n")
+              .append("        return count;\n")
+              .append("    }\n")
+              .append("    return next;\n")
+              .append("}\n\n");
+
+        source.append("class Shape").append(i).append(" {\n")
+              .append("    init(name) {\n")
+              .append("        this.name = name;\n")
+              .append("        this.sides = 0;\n")
+              .append("    }\n")
+              .append("    describe() {\n")
+              .append("        return this.name + \" with \" + \"sides\";\n")
+              .append("    }\n")
+              .append("}\n\n");
+
+        source.append("class Square").append(i).append(" < Shape").append(i).append(" {\n")
+              .append("    init(side) {\n")
+              .append("        super.init(\"square\");\n")
+              .append("        this.side = side;\n")
+              .append("        this.sides = 4;\n")
+              .append("    }\n")
+              .append("    area() {\n")
+              .append("        return area").append(i).append("(this.side, this.side);\n")
+              .append("    }\n")
+              .append("}\n\n");
+
+        source.append("var total").append(i).append(" = 0;\n")
+              .append("for (var k = 0; k < 3; k = k + 1) {\n")
+              .append("    total").append(i).append(" = total").append(i).append(" + Square").append(i).append("(k).area();\n")
+              .append("}\n")
+              .append("var ok").append(i).append(" = total").append(i).append(" >= 0 and \"a\" != \"b\" or false;\n")
+              .append("var next").append(i).append(" = counter").append(i).append("();\n")
+              .append("next").append(i).append("();\n\n");
+    }
+}
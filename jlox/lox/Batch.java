@@ -0,0 +1,250 @@
+package lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+
+/*
+ * Runs many Lox scripts in one JVM on a pool of worker threads, each with a
+ * Context and Interpreter of its own, and prints one JSON document with the
+ * exit status and time of every script and the throughput of the batch.
+ * Programs are cached by the hash of their source, so a script whose text
+ * was already compiled in this batch skips the front end.
+ *
+ * A path is a .lox file, a directory whose .lox files are all run, or a
+ * manifest: any other file, listing one script or directory per line,
+ * relative to the manifest. Blank lines and lines starting with '#' are
+ * skipped. What the scripts print is thrown away unless --output names a
+ * directory to keep it in, as <n>-<name>.out and, if there were any
+ * diagnostics, <n>-<name>.err, where n is the script's place in the batch.
+ *
+ * The status of a script is 0, 65 if it did not compile, 70 if it had a
+ * runtime error or crashed jlox, or 74 if it could not be read.
+ *
+ *   java lox.Batch [--engine=jit|tree|vm] [--threads=N] [--max-depth=N] [--output=DIR] path ...
+ */
+class Batch {
+    private static String engine = "jit";
+    private static int threads = Runtime.getRuntime().availableProcessors();
+    private static int maxDepth = Context.DEFAULT_MAX_DEPTH;
+    private static Path output = null;
+    private static ProgramCache programs;
+
+    private static class Result {
+        final Path script;
+        int status = 0;
+        long time = 0;
+        boolean cached = false;
+        // The first diagnostic, if there were any.
+        String error = null;
+
+        Result(Path script) {
+            this.script = script;
+        }
+    }
+
+    public static void main(String args[]) throws IOException, InterruptedException, ExecutionException {
+        List<Path> paths = new ArrayList<>();
+        for(String arg: args) {
+            if(arg.startsWith("--engine=")) {
+                engine = arg.substring("--engine=".length());
+                if(!engine.equals("jit") && !engine.equals("tree") && !engine.equals("vm")) {
+                    usage();
+                }
+            } else if(arg.startsWith("--threads=")) {
+                threads = count(arg.substring("--threads=".length()));
+            } else if(arg.startsWith("--max-depth=")) {
+                maxDepth = count(arg.substring("--max-depth=".length()));
+            } else if(arg.startsWith("--output=")) {
+                output = Paths.get(arg.substring("--output=".length()));
+                Files.createDirectories(output);
+            } else if(arg.startsWith("--")) {
+                usage();
+            } else {
+                paths.add(Paths.get(arg));
+            }
+        }
+        if(paths.isEmpty()) {
+            usage();
+        }
+        List<Path> scripts = new ArrayList<>();
+        for(Path path: paths) {
+            if(Files.isDirectory(path) || path.toString().endsWith(".lox")) {
+                collect(path, scripts);
+            } else {
+                for(String line: Files.readAllLines(path, Charset.defaultCharset())) {
+                    line = line.trim();
+                    if(!line.isEmpty() && !line.startsWith("#")) {
+                        collect(path.resolveSibling(line), scripts);
+                    }
+                }
+            }
+        }
+
+        programs = new ProgramCache(engine.equals("vm"));
+        List<Callable<Result>> tasks = new ArrayList<>();
+        for(int i = 0; i < scripts.size(); i++) {
+            int index = i;
+            tasks.add(() -> run(index, scripts.get(index)));
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads, Program.threads(maxDepth));
+        long start = System.nanoTime();
+        List<Future<Result>> futures = pool.invokeAll(tasks);
+        long wall = System.nanoTime() - start;
+        pool.shutdown();
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"engine\": \"").append(engine).append("\",\n");
+        json.append("  \"threads\": ").append(threads).append(",\n");
+        json.append("  \"scripts\": [");
+        long total = 0;
+        int failed = 0, hits = 0;
+        for(int i = 0; i < futures.size(); i++) {
+            Result result = futures.get(i).get();
+            total += result.time;
+            failed += (result.status == 0) ? 0 : 1;
+            hits += result.cached ? 1 : 0;
+            json.append((i == 0) ? "\n" : ",\n");
+            json.append("    {\"path\": ").append(quote(result.script.toString()))
+                .append(", \"status\": ").append(result.status)
+                .append(", \"ms\": ").append(millis(result.time))
+                .append(", \"cached\": ").append(result.cached);
+            if(result.error != null) {
+                json.append(", \"error\": ").append(quote(result.error));
+            }
+            json.append("}");
+        }
+        json.append("\n  ],\n");
+        json.append("  \"count\": ").append(futures.size()).append(",\n");
+        json.append("  \"failed\": ").append(failed).append(",\n");
+        json.append("  \"cache_hits\": ").append(hits).append(",\n");
+        json.append("  \"wall_ms\": ").append(millis(wall)).append(",\n");
+        json.append("  \"script_ms\": ").append(millis(total)).append(",\n");
+        json.append("  \"scripts_per_sec\": ").append(String.format(Locale.ROOT, "%.2f", futures.size() * 1e9 / wall)).append("\n");
+        json.append("}");
+        System.out.println(json);
+    }
+
+    private static void collect(Path path, List<Path> scripts) throws IOException {
+        if(Files.isDirectory(path)) {
+            try(Stream<Path> files = Files.list(path)) {
+                scripts.addAll(files.filter(p -> p.toString().endsWith(".lox")).sorted().collect(Collectors.toList()));
+            }
+        } else {
+            scripts.add(path);
+        }
+    }
+
+    // Reading the script and writing its output are part of its time; the
+    // front end is only when its Program was not cached.
+    private static Result run(int index, Path script) {
+        Result result = new Result(script);
+        long start = System.nanoTime();
+        String source;
+        try {
+            source = new String(Files.readAllBytes(script), Charset.defaultCharset());
+        } catch(IOException e) {
+            result.status = 74;
+            result.error = "Cannot read the script: " + e;
+            result.time = System.nanoTime() - start;
+            return result;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        Context context = new Context(new PrintStream((output == null) ? OutputStream.nullOutputStream() : out), new PrintStream(err));
+        context.jit = engine.equals("jit");
+        context.maxDepth = maxDepth;
+        String hash = Program.hash(source);
+        String crash = null;
+        try {
+            Program program = programs.find(hash);
+            if(program != null) {
+                result.cached = true;
+            } else {
+                program = programs.compile(hash, source, context);
+            }
+            if(program != null) {
+                program.run(context);
+            }
+            result.status = context.hadError ? 65 : context.hadRuntimeError ? 70 : 0;
+        } catch(RuntimeException | StackOverflowError e) {
+            // An error jlox does not report itself, or code nested deeper
+            // than the stack allows; it must not end the rest of the batch.
+            result.status = 70;
+            crash = e.toString();
+        }
+        String diagnostics = err.toString();
+        if(crash != null) {
+            result.error = crash;
+        } else if(!diagnostics.isEmpty()) {
+            result.error = diagnostics.lines().findFirst().get();
+        }
+
+        if(output != null) {
+            String name = index + "-" + script.getFileName().toString().replaceFirst("\\.lox$", "");
+            try {
+                Files.write(output.resolve(name + ".out"), out.toByteArray());
+                if(!diagnostics.isEmpty()) {
+                    Files.write(output.resolve(name + ".err"), err.toByteArray());
+                }
+            } catch(IOException e) {
+                result.status = 74;
+                result.error = "Cannot write the output: " + e;
+            }
+        }
+        result.time = System.nanoTime() - start;
+        return result;
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for(char c: value.toCharArray()) {
+            if(c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if(c < ' ') {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static String millis(double nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    private static int count(String value) {
+        try {
+            int n = Integer.parseInt(value);
+            if(n >= 1) {
+                return n;
+            }
+        } catch(NumberFormatException e) {}
+        usage();
+        return 0;
+    }
+
+    private static void usage() {
+        System.out.println("Usage: batch [--engine=jit|tree|vm] [--threads=N] [--max-depth=N] [--output=DIR] path ...");
+        System.exit(64);
+    }
+}
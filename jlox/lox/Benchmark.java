@@ -0,0 +1,147 @@
+package lox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+
+/*
+ * Runs the Lox programs under benchmarks/ (or the files and directories
+ * given) a number of times after a warmup, and prints one JSON document
+ * with the wall time, runs per second and bytes allocated per run of each.
+ * A run is the whole pipeline from scanning to the end of interpretation,
+ * on a fresh Interpreter; what the programs print is thrown away.
+ *
+ *   java lox.Benchmark [--engine=jit|tree|vm] [--warmup=N] [--runs=N] [path ...]
+ */
+class Benchmark {
+    private static String engine = "jit";
+    private static int warmup = 5;
+    private static int runs = 10;
+    private static final PrintStream NULL_OUTPUT = new PrintStream(OutputStream.nullOutputStream());
+
+    public static void main(String args[]) throws IOException {
+        List<Path> paths = new ArrayList<>();
+        for(String arg: args) {
+            if(arg.startsWith("--engine=")) {
+                engine = arg.substring("--engine=".length());
+                if(!engine.equals("jit") && !engine.equals("tree") && !engine.equals("vm")) {
+                    usage();
+                }
+            } else if(arg.startsWith("--warmup=")) {
+                warmup = count(arg.substring("--warmup=".length()), 0);
+            } else if(arg.startsWith("--runs=")) {
+                runs = count(arg.substring("--runs=".length()), 1);
+            } else if(arg.startsWith("--")) {
+                usage();
+            } else {
+                paths.add(Paths.get(arg));
+            }
+        }
+        if(paths.isEmpty()) {
+            paths.add(Paths.get("benchmarks"));
+        }
+        List<Path> scripts = new ArrayList<>();
+        for(Path path: paths) {
+            if(Files.isDirectory(path)) {
+                try(Stream<Path> files = Files.list(path)) {
+                    scripts.addAll(files.filter(p -> p.toString().endsWith(".lox")).sorted().collect(Collectors.toList()));
+                }
+            } else {
+                scripts.add(path);
+            }
+        }
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"engine\": \"").append(engine).append("\",\n");
+        json.append("  \"warmup\": ").append(warmup).append(",\n");
+        json.append("  \"runs\": ").append(runs).append(",\n");
+        json.append("  \"benchmarks\": [");
+        for(int i = 0; i < scripts.size(); i++) {
+            json.append((i == 0) ? "\n" : ",\n").append(measure(scripts.get(i)));
+        }
+        json.append("\n  ]\n}");
+        System.out.println(json);
+    }
+
+    private static String measure(Path script) throws IOException {
+        String name = script.getFileName().toString().replaceFirst("\\.lox$", "");
+        String source = new String(Files.readAllBytes(script), Charset.defaultCharset());
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        long[] times = new long[runs];
+        long[] bytes = new long[runs];
+        for(int i = -warmup; i < runs; i++) {
+            long allocated = threads.getCurrentThreadAllocatedBytes();
+            long start = System.nanoTime();
+            boolean ok = run(source);
+            long time = System.nanoTime() - start;
+            allocated = threads.getCurrentThreadAllocatedBytes() - allocated;
+            if(!ok) {
+                return "    {\"name\": \"" + name + "\", \"error\": \"the script reported an error\"}";
+            }
+            if(i >= 0) {
+                times[i] = time;
+                bytes[i] = allocated;
+            }
+        }
+
+        long total = 0, min = Long.MAX_VALUE, max = 0, totalBytes = 0;
+        for(int i = 0; i < runs; i++) {
+            total += times[i];
+            min = Math.min(min, times[i]);
+            max = Math.max(max, times[i]);
+            totalBytes += bytes[i];
+        }
+        double mean = (double) total / runs;
+        return "    {\"name\": \"" + name + "\""
+            + ", \"mean_ms\": " + millis(mean)
+            + ", \"min_ms\": " + millis(min)
+            + ", \"max_ms\": " + millis(max)
+            + ", \"ops_per_sec\": " + String.format(Locale.ROOT, "%.2f", 1e9 / mean)
+            + ", \"bytes_per_run\": " + (totalBytes / runs) + "}";
+    }
+
+    // Mirrors Lox.run; returns false if the script had a compile or runtime error.
+    private static boolean run(String source) {
+        Context context = new Context(NULL_OUTPUT, System.err);
+        context.jit = engine.equals("jit");
+        Program program = Program.compile(source, context, engine.equals("vm"));
+        if(program == null) {
+            return false;
+        }
+        program.run(context);
+        return !context.hadRuntimeError;
+    }
+
+    private static String millis(double nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    private static int count(String value, int minimum) {
+        try {
+            int n = Integer.parseInt(value);
+            if(n >= minimum) {
+                return n;
+            }
+        } catch(NumberFormatException e) {}
+        usage();
+        return 0;
+    }
+
+    private static void usage() {
+        System.out.println("Usage: benchmark [--engine=jit|tree|vm] [--warmup=N] [--runs=N] [path ...]");
+        System.exit(64);
+    }
+}
@@ -1,97 +1,213 @@
 package lox;
 
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
 
 interface CallableEntity {
     public Object call(List<Object> arguments, Interpreter interpreter);
 }
 
 class FunctionObject implements CallableEntity {
+    final String name;
     final List<Token> parameters;
     final List<Statement> code;
-    final Environment paren_env;
+    final int frameSize;
+    final int arity;
+    // Slot of the first parameter: 1 for methods, whose slot 0 holds 'this'.
+    final int firstParameter;
+    // Parameter slots (and 'this') that closures capture, so must hold Cells.
+    final int[] boxedSlots;
+    // Only the variables of enclosing functions that the body names; the
+    // frames they came from are not kept alive.
+    final Cell[] upvalues;
     private final boolean isInit;
+    private final boolean isMethod;
+    final InstanceObject receiver;
+    // Set while the function is still a candidate for the Jit.
+    LoxFunction declaration;
+    int hotness = 0;
+    int deopts = 0;
+    JitCode compiled;
+
+    FunctionObject(String name, List<Token> parameters, List<Statement> code, int frameSize, int[] boxedSlots, Cell[] upvalues, FunctionType type) {
+        this(name, parameters, code, frameSize, boxedSlots, upvalues, type == FunctionType.INITIALIZER, type == FunctionType.METHOD || type == FunctionType.INITIALIZER, null);
+    }
 
-    FunctionObject(List<Token> parameters, List<Statement> code, Environment paren_env, boolean isInit) {
+    private FunctionObject(String name, List<Token> parameters, List<Statement> code, int frameSize, int[] boxedSlots, Cell[] upvalues, boolean isInit, boolean isMethod, InstanceObject receiver) {
+        this.name = name;
         this.parameters = parameters; 
         this.code = code;
-        this.paren_env = paren_env;
+        this.frameSize = frameSize;
+        this.arity = parameters.size();
+        this.firstParameter = isMethod ? 1 : 0;
+        this.boxedSlots = boxedSlots;
+        this.upvalues = upvalues;
         this.isInit = isInit;
+        this.isMethod = isMethod;
+        this.receiver = receiver;
     }
 
     @Override
     public Object call(List<Object> arguments, Interpreter interpreter) {
-        if(arguments.size() != parameters.size()) {
-            throw new CallableError(parameters.get(0)).invalidNumberOfArguments(arguments.size(), parameters.size()); 
-        }
-        Environment funcEnv = new Environment(paren_env); 
-        Environment prev = interpreter.env;
-        interpreter.env = funcEnv;
+        return invoke(receiver, arguments, interpreter);
+    }
 
-        for(int i = 0; i < parameters.size(); i++) {
-            funcEnv.put(parameters.get(i), arguments.get(i));
+    // A method's receiver sits in slot 0 of its own frame, ahead of the
+    // parameters, so calling obj.m() needs neither a bound FunctionObject
+    // nor an extra Environment to hold 'this'.
+    public Object invoke(InstanceObject receiver, List<Object> arguments, Interpreter interpreter) {
+        if(arguments.size() != arity) {
+            throw new CallableError(parameters.get(0)).invalidNumberOfArguments(arguments.size(), arity); 
         }
-        try { 
-            interpreter.interpret(code);
-        } catch(ReturnValue rv) {
-            interpreter.env = prev;
-            return rv.value;
+        Environment funcEnv = newFrame(); 
+        for(int i = 0; i < arity; i++) {
+            funcEnv.define(firstParameter + i, arguments.get(i));
         }
+        return execute(receiver, funcEnv, interpreter);
+    }
 
+    Environment newFrame() {
+        return new Environment(null, frameSize);
+    }
 
-        Object rv = null;
-
-        if(isInit) {
-            rv = interpreter.env.get(new Token(TokenType.THIS, "this", null, -1), 1); 
+    // Runs the body in a frame whose parameter slots are already filled.
+    // A 'return f(...)' in the body hands back the callee and its frame as
+    // a TailCall, which then runs here in place of the body that made it,
+    // so tail recursion takes neither Java stack nor a chain of frames.
+    // Kept to one method that runs the statements itself, as every Lox
+    // call nests a call to it.
+    Object execute(InstanceObject receiver, Environment funcEnv, Interpreter interpreter) {
+        Environment prev = interpreter.env;
+        FunctionObject caller = interpreter.current;
+        FunctionObject function = this;
+        try {
+            while(true) {
+                function.enter(receiver, funcEnv, interpreter);
+                try {
+                    for(Statement statement: function.code) {
+                        statement.accept(interpreter);
+                    }
+                } catch(ReturnValue rv) {
+                    return rv.value;
+                } catch(TailCall call) {
+                    function = call.function;
+                    receiver = call.receiver;
+                    funcEnv = call.frame;
+                    continue;
+                }
+                return function.isInit ? receiver : null;
+            }
+        } finally {
+            interpreter.env = prev;
+            interpreter.current = caller;
         }
+    }
 
-        interpreter.env = prev;
-        return rv;
-    } 
+    private void enter(InstanceObject receiver, Environment funcEnv, Interpreter interpreter) {
+        if(isMethod) {
+            funcEnv.define(0, receiver);
+        }
+        for(int slot: boxedSlots) {
+            funcEnv.box(slot);
+        }
+        interpreter.env = funcEnv;
+        interpreter.current = this;
+    }
 
+    // Only needed once a method is used as a value, e.g. 'var f = obj.m;'.
     public FunctionObject bind(InstanceObject instance) {
-        Environment env = new Environment(paren_env);
-        env.put(new Token(TokenType.THIS, "this", null, -1), instance);
-        return new FunctionObject(this.parameters, this.code, env, isInit);
+        return new FunctionObject(this.name, this.parameters, this.code, this.frameSize, boxedSlots, upvalues, isInit, isMethod, instance);
+    }
+
+    // The same as a VMFunction's, so both engines print a function alike.
+    @Override
+    public String toString() {
+        return "<fn " + name + ">";
     }
 }
 
 
 class ClassObject implements CallableEntity {
     final Token name;
+    // Flattened: holds inherited methods as well as the class's own.
     final Map<String, FunctionObject> methods;
     final ClassObject parentClass;
+    final FunctionObject init;
+    final Shape shape = new Shape();
+    int fieldCapacity = 0;
 
     ClassObject(Token name, Map<String, FunctionObject> methods, ClassObject parentClass) {
         this.name = name;
         this.methods = methods;
         this.parentClass = parentClass; 
+        this.init = methods.get("init");
     }
 
     @Override
     public Object call(List<Object> arguments, Interpreter interpreter) {
         InstanceObject instance = new InstanceObject(this); 
-        FunctionObject init = this.findMethod("init");
         if(init != null) 
-            init.bind(instance).call(arguments, interpreter); 
+            init.invoke(instance, arguments, interpreter); 
         return instance;
     }
 
 
     public FunctionObject findMethod(String name) {
-        if(methods.containsKey(name)) {
-            return methods.get(name); 
-        } else {
-            if(parentClass != null)
-                return parentClass.findMethod(name);
-            return null;
-        }
+        return methods.get(name); 
     }
 
+    @Override
+    public String toString() {
+        return name.lexeme;
+    }
+}
+
 
 
+/*
+ * A function implemented in Java. The natives in LIBRARY are declared in the
+ * global scope, in this order, before any of the program's own globals, and
+ * a call runs 'body' on the evaluated arguments without setting up an
+ * Environment. New primitives are added by appending to LIBRARY.
+ */
+class NativeFunction implements CallableEntity {
+    static final NativeFunction[] LIBRARY = {
+        new NativeFunction("clock", 0, arguments -> System.currentTimeMillis() / 1000.0),
+        new NativeFunction("nanoTime", 0, arguments -> (double) System.nanoTime()),
+        new NativeFunction("gcCount", 0, arguments -> gcCount()),
+    };
+
+    final String name;
+    final int arity;
+    private final Function<List<Object>, Object> body;
+
+    NativeFunction(String name, int arity, Function<List<Object>, Object> body) {
+        this.name = name;
+        this.arity = arity;
+        this.body = body;
+    }
+
+    // Callers check the arity first, against their own call site.
+    @Override
+    public Object call(List<Object> arguments, Interpreter interpreter) {
+        return body.apply(arguments);
+    }
 
+    @Override
+    public String toString() {
+        return "<native fn " + name + ">";
+    }
+
+    private static double gcCount() {
+        long count = 0;
+        for(GarbageCollectorMXBean collector: ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
 }
 
 
@@ -106,3 +222,17 @@ class ReturnValue extends RuntimeException {
 }
 
 
+class TailCall extends RuntimeException {
+    final FunctionObject function;
+    final InstanceObject receiver;
+    final Environment frame;
+
+    TailCall(FunctionObject function, InstanceObject receiver, Environment frame) {
+        super(null, null, false, false);
+        this.function = function;
+        this.receiver = receiver;
+        this.frame = frame;
+    }
+}
+
+
@@ -0,0 +1,102 @@
+package lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+
+/*
+ * Runs the Lox programs under benchmarks/ (or the files and directories
+ * given) on every engine and checks that the Jit and the VM print the same
+ * output and diagnostics, and end with the same status, as the tree-walker.
+ * Prints one line per script and exits with 1 if any of them differed.
+ *
+ *   java lox.Check [path ...]
+ */
+class Check {
+    private static final String[] ENGINES = { "tree", "jit", "vm" };
+
+    public static void main(String args[]) throws IOException, InterruptedException, ExecutionException {
+        List<Path> paths = new ArrayList<>();
+        for(String arg: args) {
+            if(arg.startsWith("--")) {
+                usage();
+            }
+            paths.add(Paths.get(arg));
+        }
+        if(paths.isEmpty()) {
+            paths.add(Paths.get("benchmarks"));
+        }
+        List<Path> scripts = new ArrayList<>();
+        for(Path path: paths) {
+            if(Files.isDirectory(path)) {
+                try(Stream<Path> files = Files.list(path)) {
+                    scripts.addAll(files.filter(p -> p.toString().endsWith(".lox")).sorted().collect(Collectors.toList()));
+                }
+            } else {
+                scripts.add(path);
+            }
+        }
+
+        // The runs get the stack jlox would give them.
+        ExecutorService runner = Executors.newSingleThreadExecutor(Program.threads(Context.DEFAULT_MAX_DEPTH));
+        int failed = 0;
+        for(Path script: scripts) {
+            String source = new String(Files.readAllBytes(script), Charset.defaultCharset());
+            String expected = runner.submit(() -> run(source, ENGINES[0])).get();
+            List<String> differing = new ArrayList<>();
+            for(int i = 1; i < ENGINES.length; i++) {
+                String engine = ENGINES[i];
+                if(!runner.submit(() -> run(source, engine)).get().equals(expected)) {
+                    differing.add(ENGINES[i]);
+                }
+            }
+            if(differing.isEmpty()) {
+                System.out.println("ok    " + script);
+            } else {
+                System.out.println("FAIL  " + script + " (differs from tree on " + String.join(", ", differing) + ")");
+                failed++;
+            }
+        }
+        runner.shutdown();
+        System.out.println(scripts.size() - failed + " of " + scripts.size() + " scripts agree.");
+        if(failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    // Everything the script printed, its diagnostics and how it ended.
+    private static String run(String source, String engine) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        Context context = new Context(new PrintStream(out), new PrintStream(err));
+        context.jit = engine.equals("jit");
+        String status;
+        try {
+            Program program = Program.compile(source, context, engine.equals("vm"));
+            if(program != null) {
+                program.run(context);
+            }
+            status = context.hadError ? "65" : context.hadRuntimeError ? "70" : "0";
+        } catch(RuntimeException | StackOverflowError e) {
+            status = "crashed: " + e;
+        }
+        return out + "\n--- err\n" + err + "\n--- status " + status;
+    }
+
+    private static void usage() {
+        System.out.println("Usage: check [path ...]");
+        System.exit(64);
+    }
+}
@@ -0,0 +1,98 @@
+package lox;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+
+final class OpCode {
+    static final byte CONSTANT      = 0;
+    static final byte NIL           = 1;
+    static final byte TRUE          = 2;
+    static final byte FALSE         = 3;
+    static final byte POP           = 4;
+    static final byte GET_LOCAL     = 5;
+    static final byte SET_LOCAL     = 6;
+    static final byte GET_GLOBAL    = 7;
+    static final byte DEFINE_GLOBAL = 8;
+    static final byte SET_GLOBAL    = 9;
+    static final byte GET_UPVALUE   = 10;
+    static final byte SET_UPVALUE   = 11;
+    static final byte GET_PROPERTY  = 12;
+    static final byte SET_PROPERTY  = 13;
+    static final byte GET_SUPER     = 14;
+    static final byte EQUAL         = 15;
+    static final byte NOT_EQUAL     = 16;
+    static final byte GREATER       = 17;
+    static final byte GREATER_EQUAL = 18;
+    static final byte LESS          = 19;
+    static final byte LESS_EQUAL    = 20;
+    static final byte ADD           = 21;
+    static final byte SUBTRACT      = 22;
+    static final byte MULTIPLY      = 23;
+    static final byte DIVIDE        = 24;
+    static final byte NOT           = 25;
+    static final byte NEGATE        = 26;
+    static final byte PRINT         = 27;
+    static final byte JUMP          = 28;
+    static final byte JUMP_IF_FALSE = 29;
+    static final byte LOOP          = 30;
+    static final byte CALL          = 31;
+    static final byte INVOKE        = 32;
+    static final byte CLOSURE       = 33;
+    static final byte CLOSE_UPVALUE = 34;
+    static final byte RETURN        = 35;
+    static final byte CLASS         = 36;
+    static final byte INHERIT       = 37;
+    static final byte METHOD        = 38;
+    static final byte TAIL_CALL     = 39;
+    static final byte TAIL_INVOKE   = 40;
+
+    private OpCode() {}
+}
+
+
+/*
+ * A chunk is the compiled form of one function body: a flat byte array of
+ * instructions, the line of the source each byte came from, and the
+ * constants the instructions refer to by index.
+ */
+class Chunk {
+    byte[] code = new byte[64];
+    int[] lines = new int[64];
+    int count = 0;
+    Object[] constants;
+    private final List<Object> constantPool = new ArrayList<>();
+    // Where each number and string already is in the pool; functions are
+    // never shared, so they are not in it.
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+
+    void write(int b, int line) {
+        if(count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = (byte) b;
+        lines[count] = line;
+        count++;
+    }
+
+    int addConstant(Object value) {
+        if(!(value instanceof VMFunction)) {
+            Integer index = constantIndex.putIfAbsent(value, constantPool.size());
+            if(index != null) {
+                return index;
+            }
+        }
+        constantPool.add(value);
+        return constantPool.size() - 1;
+    }
+
+    void seal() {
+        code = Arrays.copyOf(code, count);
+        lines = Arrays.copyOf(lines, count);
+        constants = constantPool.toArray();
+    }
+}
@@ -0,0 +1,268 @@
+package lox;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/*
+ * Just enough of a JVM class-file writer for the Jit: a constant pool, and
+ * methods built from raw opcodes with forward-patched branch labels. It
+ * writes version 49 class files, which the JVM still verifies by type
+ * inference, so no StackMapTable has to be computed for the branches.
+ */
+class ClassFile {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private final ClassBytes pool = new ClassBytes();
+    private final Map<String, Integer> entries = new HashMap<>();
+    private int poolCount = 1;
+    private final List<ClassBytes> methods = new ArrayList<>();
+    private final int thisClass;
+    private final int superClass;
+
+    ClassFile(String name, String superName) {
+        this.thisClass = classRef(name);
+        this.superClass = classRef(superName);
+    }
+
+    int utf8(String value) {
+        Integer index = entries.get("U" + value);
+        if(index == null) {
+            pool.u1(1);
+            pool.utf(value);
+            index = poolCount++;
+            entries.put("U" + value, index);
+        }
+        return index;
+    }
+
+    int classRef(String name) {
+        return entry("C" + name, 7, utf8(name), -1);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return entry("M" + owner + "." + name + descriptor, 10, classRef(owner), nameAndType(name, descriptor));
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return entry("F" + owner + "." + name + descriptor, 9, classRef(owner), nameAndType(name, descriptor));
+    }
+
+    int doubleConstant(double value) {
+        String key = "D" + Double.doubleToRawLongBits(value);
+        Integer index = entries.get(key);
+        if(index == null) {
+            long bits = Double.doubleToRawLongBits(value);
+            pool.u1(6);
+            pool.u4((int) (bits >>> 32));
+            pool.u4((int) bits);
+            index = poolCount;
+            // Longs and doubles take up two constant pool entries.
+            poolCount += 2;
+            entries.put(key, index);
+        }
+        return index;
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        return entry("N" + name + descriptor, 12, utf8(name), utf8(descriptor));
+    }
+
+    private int entry(String key, int tag, int first, int second) {
+        Integer index = entries.get(key);
+        if(index == null) {
+            pool.u1(tag);
+            pool.u2(first);
+            if(second >= 0) {
+                pool.u2(second);
+            }
+            index = poolCount++;
+            entries.put(key, index);
+        }
+        return index;
+    }
+
+    void addMethod(int access, String name, String descriptor, Code code) {
+        ClassBytes method = new ClassBytes();
+        method.u2(access);
+        method.u2(utf8(name));
+        method.u2(utf8(descriptor));
+        method.u2(1);
+        method.u2(utf8("Code"));
+        method.u4(12 + code.bytes.size);
+        method.u2(code.maxStack);
+        method.u2(code.maxLocals);
+        method.u4(code.bytes.size);
+        method.bytes(code.bytes);
+        method.u2(0);
+        method.u2(0);
+        methods.add(method);
+    }
+
+    byte[] toByteArray() {
+        ClassBytes out = new ClassBytes();
+        out.u4(0xCAFEBABE);
+        out.u2(0);
+        out.u2(49);
+        out.u2(poolCount);
+        out.bytes(pool);
+        out.u2(ACC_FINAL | ACC_SUPER);
+        out.u2(thisClass);
+        out.u2(superClass);
+        out.u2(0);
+        out.u2(0);
+        out.u2(methods.size());
+        for(ClassBytes method: methods) {
+            out.bytes(method);
+        }
+        out.u2(0);
+        return out.toByteArray();
+    }
+}
+
+
+/*
+ * The body of one method. The caller keeps 'stack' up to date as it emits
+ * instructions (doubles count as two), which is all max_stack needs.
+ */
+class Code {
+    static final int DCONST_0 = 0x0e, DCONST_1 = 0x0f, ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC2_W = 0x14;
+    static final int ILOAD = 0x15, DLOAD = 0x18, ALOAD = 0x19, DSTORE = 0x39;
+    static final int POP = 0x57, DUP = 0x59, POP2 = 0x58, DUP2 = 0x5c;
+    static final int ISUB = 0x64, DADD = 0x63, DSUB = 0x67, DMUL = 0x6b, DDIV = 0x6f, DNEG = 0x77;
+    static final int DCMPL = 0x97, DCMPG = 0x98;
+    static final int IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b, IFGE = 0x9c, IFGT = 0x9d, IFLE = 0x9e, GOTO = 0xa7;
+    static final int DRETURN = 0xaf, RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2, INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8;
+    static final int ATHROW = 0xbf, CHECKCAST = 0xc0, INSTANCEOF = 0xc1, WIDE = 0xc4;
+
+    final ClassBytes bytes = new ClassBytes();
+    int stack = 0;
+    int maxStack = 0;
+    int maxLocals = 0;
+
+    // 'effect' is the change in operand stack depth, in words.
+    void op(int opcode, int effect) {
+        bytes.u1(opcode);
+        adjust(effect);
+    }
+
+    void op(int opcode, int operand, int effect) {
+        bytes.u1(opcode);
+        bytes.u2(operand);
+        adjust(effect);
+    }
+
+    void local(int opcode, int index, int effect) {
+        if(index > 255) {
+            bytes.u1(WIDE);
+            bytes.u1(opcode);
+            bytes.u2(index);
+        } else {
+            bytes.u1(opcode);
+            bytes.u1(index);
+        }
+        maxLocals = Math.max(maxLocals, index + ((opcode == ALOAD || opcode == ILOAD) ? 1 : 2));
+        adjust(effect);
+    }
+
+    void pushInt(int value) {
+        if(value >= 0 && value <= 5) {
+            op(ICONST_0 + value, 1);
+        } else if(value <= Byte.MAX_VALUE) {
+            bytes.u1(BIPUSH);
+            bytes.u1(value);
+            adjust(1);
+        } else {
+            op(SIPUSH, value, 1);
+        }
+    }
+
+    void adjust(int effect) {
+        stack += effect;
+        maxStack = Math.max(maxStack, stack);
+    }
+
+    void jump(int opcode, Label target, int effect) {
+        int at = bytes.size;
+        bytes.u1(opcode);
+        if(target.position >= 0) {
+            bytes.u2(target.position - at);
+        } else {
+            target.uses.add(at);
+            bytes.u2(0);
+        }
+        adjust(effect);
+    }
+
+    void mark(Label label) {
+        label.position = bytes.size;
+        for(int use: label.uses) {
+            bytes.patch(use + 1, label.position - use);
+        }
+    }
+
+    // Branch offsets are signed 16-bit, which caps a method at 32K of code.
+    boolean fits() {
+        return bytes.size < Short.MAX_VALUE;
+    }
+}
+
+
+class Label {
+    final List<Integer> uses = new ArrayList<>();
+    int position = -1;
+}
+
+
+class ClassBytes {
+    byte[] data = new byte[256];
+    int size = 0;
+
+    void u1(int value) {
+        if(size == data.length) {
+            data = Arrays.copyOf(data, size * 2);
+        }
+        data[size++] = (byte) value;
+    }
+
+    void u2(int value) {
+        u1(value >>> 8);
+        u1(value);
+    }
+
+    void u4(int value) {
+        u2(value >>> 16);
+        u2(value);
+    }
+
+    void utf(String value) {
+        byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+        u2(encoded.length);
+        for(byte b: encoded) {
+            u1(b);
+        }
+    }
+
+    void bytes(ClassBytes other) {
+        for(int i = 0; i < other.size; i++) {
+            u1(other.data[i]);
+        }
+    }
+
+    void patch(int at, int value) {
+        data[at] = (byte) (value >>> 8);
+        data[at + 1] = (byte) value;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(data, size);
+    }
+}
@@ -0,0 +1,662 @@
+package lox;
+
+import java.util.List;
+import java.util.ArrayList;
+
+
+/*
+ * Lowers a resolved program into bytecode for the VM. Locals live in stack
+ * slots of the enclosing call frame, variables captured by closures are
+ * reached through upvalues and top level declarations become globals, in
+ * the slots the Resolver numbered for the tree-walker.
+ */
+public class Compiler implements Expression.Visitor<Void>, Statement.Visitor<Void> {
+
+    private static class Local {
+        final String name;
+        final int depth;
+        boolean isCaptured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final VMFunction function;
+        final FunctionType type;
+        final List<Local> locals = new ArrayList<>();
+        final List<int[]> upvalues = new ArrayList<>();
+        int scopeDepth = 0;
+
+        FunctionState(FunctionState enclosing, VMFunction function, FunctionType type) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+        }
+    }
+
+    private final Context context;
+    private FunctionState current = null;
+    private int line = 1;
+    // Set by a tail Return for the Callable it compiles next.
+    private boolean inTailPosition = false;
+
+    Compiler(Context context) {
+        this.context = context;
+    }
+
+
+    public VMFunction compile(List<Statement> program) {
+        FunctionState script = new FunctionState(null, new VMFunction("script", 0), FunctionType.NONE);
+        script.locals.add(new Local("", 0));
+        current = script;
+        for(Statement statement: program) {
+            try {
+                compile(statement);
+            } catch(CompileError error) {
+                context.error(error.line, error.message);
+                current = script;
+                current.scopeDepth = 0;
+                continue;
+            }
+        }
+        return endFunction().function;
+    }
+
+
+    private void compile(Statement statement) {
+        statement.accept(this);
+    }
+
+    private void compile(Expression expr) {
+        expr.accept(this);
+    }
+
+    private void compileStatements(List<Statement> statements) {
+        for(Statement statement: statements) {
+            compile(statement);
+        }
+    }
+
+
+    // Statements
+
+    @Override
+    public Void visitPrint(Print statement) {
+        compile(statement.expr);
+        emit(OpCode.PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitReturn(Return statement) {
+        line = statement.name.line;
+        inTailPosition = statement.tail;
+        compile(statement.expr);
+        emit(OpCode.RETURN);
+        return null;
+    }
+
+    @Override
+    public Void visitExpr(Expr statement) {
+        compile(statement.expr);
+        emit(OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Void visitVar(Var statement) {
+        line = statement.name.line;
+        if(statement.value != null) {
+            compile(statement.value);
+        } else {
+            emit(OpCode.NIL);
+        }
+        defineVariable(statement.name, statement.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitBlock(Block statement) {
+        beginScope();
+        compileStatements(statement.statements);
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitIf(If statement) {
+        List<Integer> exits = new ArrayList<>();
+
+        compile(statement.ifClause);
+        int next = emitJump(OpCode.JUMP_IF_FALSE);
+        compileBranch(statement.ifCode);
+        exits.add(emitJump(OpCode.JUMP));
+        patchJump(next);
+
+        if(statement.elifClause != null) {
+            for(int i = 0; i < statement.elifClause.size(); i++) {
+                compile(statement.elifClause.get(i));
+                next = emitJump(OpCode.JUMP_IF_FALSE);
+                compileBranch(statement.elifCode.get(i));
+                exits.add(emitJump(OpCode.JUMP));
+                patchJump(next);
+            }
+        }
+
+        if(statement.elseCode != null) {
+            compileBranch(statement.elseCode);
+        }
+
+        for(int exit: exits) {
+            patchJump(exit);
+        }
+        return null;
+    }
+
+    private void compileBranch(List<Statement> code) {
+        beginScope();
+        compileStatements(code);
+        endScope();
+    }
+
+    @Override
+    public Void visitWhile(While statement) {
+        int loopStart = current.function.chunk.count;
+        compile(statement.whileClause);
+        int exit = emitJump(OpCode.JUMP_IF_FALSE);
+        compile(statement.whileCode);
+        emitLoop(loopStart);
+        patchJump(exit);
+        return null;
+    }
+
+    @Override
+    public Void visitFor(For statement) {
+        beginScope();
+        if(statement.init != null) compile(statement.init);
+
+        int loopStart = current.function.chunk.count;
+        int exit = -1;
+        if(statement.forClause != null) {
+            compile(statement.forClause);
+            exit = emitJump(OpCode.JUMP_IF_FALSE);
+        }
+        compile(statement.forCode);
+        if(statement.forComp != null) {
+            compile(statement.forComp);
+            emit(OpCode.POP);
+        }
+        emitLoop(loopStart);
+        if(exit != -1) patchJump(exit);
+
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitLoxFunction(LoxFunction statement) {
+        line = statement.name.line;
+        if(current.scopeDepth > 0) {
+            addLocal(statement.name.lexeme);
+        }
+        function(statement);
+        if(current.scopeDepth == 0) {
+            emit(OpCode.DEFINE_GLOBAL, statement.slot);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLoxClass(LoxClass statement) {
+        line = statement.name.line;
+        int name = identifier(statement.name);
+        boolean global = current.scopeDepth == 0;
+        // The parent is evaluated while the class's own variable is still
+        // nil, as in the tree-walker, so 'class A < A' has nothing to inherit
+        // from. It is left on the stack to become 'super'; a local class
+        // needs its slot beneath that, so nil holds the slot meanwhile.
+        if(statement.parentClass == null) {
+            emit(OpCode.CLASS, name);
+            defineVariable(statement.name, statement.slot);
+        } else if(global) {
+            compile(statement.parentClass);
+            emit(OpCode.CLASS, name);
+            defineVariable(statement.name, statement.slot);
+        } else {
+            emit(OpCode.NIL);
+            defineVariable(statement.name, statement.slot);
+            int local = current.locals.size() - 1;
+            compile(statement.parentClass);
+            emit(OpCode.CLASS, name);
+            emit(OpCode.SET_LOCAL, local);
+            emit(OpCode.POP);
+        }
+        int depth = global ? Resolver.GLOBAL : 0;
+
+        if(statement.parentClass != null) {
+            beginScope();
+            addLocal("super");
+            loadVariable(statement.name, depth, statement.slot);
+            emit(OpCode.INHERIT);
+        }
+
+        loadVariable(statement.name, depth, statement.slot);
+        for(LoxFunction method: statement.methods) {
+            line = method.name.line;
+            function(method);
+            emit(OpCode.METHOD, identifier(method.name));
+        }
+        emit(OpCode.POP);
+
+        if(statement.parentClass != null) {
+            endScope();
+        }
+        return null;
+    }
+
+    private void function(LoxFunction statement) {
+        FunctionState state = new FunctionState(current, new VMFunction(statement.name.lexeme, statement.parameters.size()), statement.type);
+        current = state;
+        beginScope();
+        if(statement.type == FunctionType.METHOD || statement.type == FunctionType.INITIALIZER) {
+            current.locals.add(new Local("this", current.scopeDepth));
+        } else {
+            current.locals.add(new Local("", current.scopeDepth));
+        }
+        for(Token parameter: statement.parameters) {
+            addLocal(parameter.lexeme);
+        }
+        compileStatements(statement.funCode);
+        endFunction();
+
+        int index = current.function.chunk.addConstant(state.function);
+        emit(OpCode.CLOSURE, index);
+        for(int[] upvalue: state.upvalues) {
+            emitByte(upvalue[0]);
+            emitByte(upvalue[1]);
+        }
+    }
+
+    private FunctionState endFunction() {
+        FunctionState state = current;
+        if(state.type == FunctionType.INITIALIZER) {
+            emitByte(OpCode.GET_LOCAL);
+            emitByte(0);
+        } else {
+            emitByte(OpCode.NIL);
+        }
+        emitByte(OpCode.RETURN);
+        state.function.upvalueCount = state.upvalues.size();
+        state.function.chunk.seal();
+        current = state.enclosing;
+        return state;
+    }
+
+
+    // Expressions
+
+    @Override
+    public Void visitAssign(Assign expr) {
+        compile(expr.value);
+        line = expr.name.line;
+        storeVariable(expr.name.lexeme, expr.depth, expr.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitGrouping(Grouping expr) {
+        compile(expr.expr);
+        return null;
+    }
+
+    @Override
+    public Void visitLogical(Logical expr) {
+        line = expr.operator.line;
+        compile(expr.left_expr);
+        if(expr.operator.type == TokenType.AND) {
+            int shortCircuit = emitJump(OpCode.JUMP_IF_FALSE);
+            compile(expr.right_expr);
+            int isFalse = emitJump(OpCode.JUMP_IF_FALSE);
+            emit(OpCode.TRUE);
+            int end = emitJump(OpCode.JUMP);
+            patchJump(shortCircuit);
+            patchJump(isFalse);
+            emit(OpCode.FALSE);
+            patchJump(end);
+        } else {
+            int right = emitJump(OpCode.JUMP_IF_FALSE);
+            emit(OpCode.TRUE);
+            int leftTrue = emitJump(OpCode.JUMP);
+            patchJump(right);
+            compile(expr.right_expr);
+            int isFalse = emitJump(OpCode.JUMP_IF_FALSE);
+            emit(OpCode.TRUE);
+            int end = emitJump(OpCode.JUMP);
+            patchJump(isFalse);
+            emit(OpCode.FALSE);
+            patchJump(end);
+            patchJump(leftTrue);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnary(Unary expr) {
+        compile(expr.expr);
+        line = expr.operator.line;
+        if(expr.operator.type == TokenType.MINUS) {
+            emit(OpCode.NEGATE);
+        } else {
+            emit(OpCode.NOT);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinary(Binary expr) {
+        compile(expr.left_expr);
+        if(expr.operator.type == TokenType.COMMA) {
+            emit(OpCode.POP);
+            compile(expr.right_expr);
+            return null;
+        }
+        compile(expr.right_expr);
+        line = expr.operator.line;
+        switch(expr.operator.type) {
+            case PLUS:           emit(OpCode.ADD); break;
+            case MINUS:          emit(OpCode.SUBTRACT); break;
+            case STAR:           emit(OpCode.MULTIPLY); break;
+            case SLASH:          emit(OpCode.DIVIDE); break;
+            case DOUBLE_EQUALS:  emit(OpCode.EQUAL); break;
+            case BANG_EQUALS:    emit(OpCode.NOT_EQUAL); break;
+            case GREATER:        emit(OpCode.GREATER); break;
+            case GREATER_EQUALS: emit(OpCode.GREATER_EQUAL); break;
+            case LESS:           emit(OpCode.LESS); break;
+            case LESS_EQUALS:    emit(OpCode.LESS_EQUAL); break;
+            default:
+                throw new CompileError().unsupported(expr.operator);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitTernary(Ternary expr) {
+        compile(expr.first_expr);
+        line = expr.operator1_2.line;
+        int otherwise = emitJump(OpCode.JUMP_IF_FALSE);
+        compile(expr.sec_expr);
+        int end = emitJump(OpCode.JUMP);
+        patchJump(otherwise);
+        compile(expr.third_expr);
+        patchJump(end);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteral(Literal expr) {
+        if(expr.value == null) {
+            emit(OpCode.NIL);
+        } else if(expr.value instanceof Boolean) {
+            emit((Boolean) expr.value ? OpCode.TRUE : OpCode.FALSE);
+        } else {
+            emit(OpCode.CONSTANT, current.function.chunk.addConstant(expr.value));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariable(Variable expr) {
+        loadVariable(expr.name, expr.depth, expr.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitThis(This expr) {
+        loadVariable(expr.dis, expr.depth, expr.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitGet(Get expr) {
+        compile(expr.variable);
+        line = expr.name.line;
+        emit(OpCode.GET_PROPERTY, identifier(expr.name));
+        return null;
+    }
+
+    @Override
+    public Void visitSet(Set expr) {
+        compile(expr.variable);
+        compile(expr.value);
+        line = expr.name.line;
+        emit(OpCode.SET_PROPERTY, identifier(expr.name));
+        return null;
+    }
+
+    @Override
+    public Void visitCallable(Callable expr) {
+        boolean tail = inTailPosition;
+        inTailPosition = false;
+        if(expr.arguments.size() > 255) {
+            throw new CompileError().tooMany(expr.paren, "arguments");
+        }
+        if(expr.name instanceof Get) {
+            Get method = (Get) expr.name;
+            compile(method.variable);
+            for(Expression argument: expr.arguments) {
+                compile(argument);
+            }
+            line = expr.paren.line;
+            emit(tail ? OpCode.TAIL_INVOKE : OpCode.INVOKE, identifier(method.name));
+            emitByte(expr.arguments.size());
+            return null;
+        }
+        compile(expr.name);
+        for(Expression argument: expr.arguments) {
+            compile(argument);
+        }
+        line = expr.paren.line;
+        emitByte(tail ? OpCode.TAIL_CALL : OpCode.CALL);
+        emitByte(expr.arguments.size());
+        return null;
+    }
+
+    @Override
+    public Void visitSuper(Super expr) {
+        line = expr.ssup.line;
+        if(expr.name == null) {
+            loadVariable(expr.ssup, expr.depth, expr.slot);
+            return null;
+        }
+        loadVariable(expr.receiver.dis, expr.receiver.depth, expr.receiver.slot);
+        loadVariable(expr.ssup, expr.depth, expr.slot);
+        emit(OpCode.GET_SUPER, identifier(expr.name));
+        return null;
+    }
+
+
+    // Variables and scopes
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        current.scopeDepth--;
+        List<Local> locals = current.locals;
+        while(!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            Local local = locals.remove(locals.size() - 1);
+            emitByte(local.isCaptured ? OpCode.CLOSE_UPVALUE : OpCode.POP);
+        }
+    }
+
+    private void addLocal(String name) {
+        if(current.locals.size() == 256) {
+            throw new CompileError().tooMany(new Token(TokenType.IDENTIFIER, name, null, line), "local variables");
+        }
+        current.locals.add(new Local(name, current.scopeDepth));
+    }
+
+    // 'slot' is the global slot the Resolver gave the declaration, used if
+    // it is at the top level.
+    private void defineVariable(Token name, int slot) {
+        if(current.scopeDepth == 0) {
+            emit(OpCode.DEFINE_GLOBAL, slot);
+        } else {
+            addLocal(name.lexeme);
+        }
+    }
+
+    // Globals are found by the Resolver's 'depth' and 'slot', like in the
+    // tree-walker; anything else is a local or an upvalue of the function.
+    private void loadVariable(Token name, int depth, int slot) {
+        line = name.line;
+        if(depth == Resolver.GLOBAL) {
+            emit(OpCode.GET_GLOBAL, slot);
+            return;
+        }
+        int local = resolveLocal(current, name.lexeme);
+        if(local != -1) {
+            emit(OpCode.GET_LOCAL, local);
+        } else {
+            emit(OpCode.GET_UPVALUE, resolveUpvalue(current, name.lexeme));
+        }
+    }
+
+    private void storeVariable(String name, int depth, int slot) {
+        if(depth == Resolver.GLOBAL) {
+            emit(OpCode.SET_GLOBAL, slot);
+            return;
+        }
+        int local = resolveLocal(current, name);
+        if(local != -1) {
+            emit(OpCode.SET_LOCAL, local);
+        } else {
+            emit(OpCode.SET_UPVALUE, resolveUpvalue(current, name));
+        }
+    }
+
+    private int resolveLocal(FunctionState state, String name) {
+        for(int i = state.locals.size() - 1; i >= 0; i--) {
+            if(state.locals.get(i).name.equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int resolveUpvalue(FunctionState state, String name) {
+        if(state.enclosing == null) return -1;
+
+        int local = resolveLocal(state.enclosing, name);
+        if(local != -1) {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, 1, local);
+        }
+        int upvalue = resolveUpvalue(state.enclosing, name);
+        if(upvalue != -1) {
+            return addUpvalue(state, 0, upvalue);
+        }
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, int isLocal, int index) {
+        for(int i = 0; i < state.upvalues.size(); i++) {
+            int[] upvalue = state.upvalues.get(i);
+            if(upvalue[0] == isLocal && upvalue[1] == index) {
+                return i;
+            }
+        }
+        if(state.upvalues.size() == 256) {
+            throw new CompileError().tooMany(new Token(TokenType.IDENTIFIER, "", null, line), "closure variables");
+        }
+        state.upvalues.add(new int[] {isLocal, index});
+        return state.upvalues.size() - 1;
+    }
+
+    private int identifier(Token name) {
+        return current.function.chunk.addConstant(name.lexeme);
+    }
+
+
+    // Emitters
+
+    private void emitByte(int b) {
+        current.function.chunk.write(b, line);
+    }
+
+    private void emit(byte op) {
+        emitByte(op);
+    }
+
+    private void emit(byte op, int operand) {
+        emitByte(op);
+        switch(op) {
+            case OpCode.GET_LOCAL:
+            case OpCode.SET_LOCAL:
+            case OpCode.GET_UPVALUE:
+            case OpCode.SET_UPVALUE:
+                emitByte(operand);
+                break;
+            default:
+                if(operand > 0xffff) {
+                    throw new CompileError().tooMany(new Token(TokenType.IDENTIFIER, "", null, line), "constants");
+                }
+                emitByte((operand >> 8) & 0xff);
+                emitByte(operand & 0xff);
+        }
+    }
+
+    private int emitJump(byte op) {
+        emitByte(op);
+        emitByte(0xff);
+        emitByte(0xff);
+        return current.function.chunk.count - 2;
+    }
+
+    private void patchJump(int offset) {
+        Chunk chunk = current.function.chunk;
+        int jump = chunk.count - offset - 2;
+        if(jump > 0xffff) {
+            throw new CompileError().tooMany(new Token(TokenType.IDENTIFIER, "", null, line), "instructions to jump over");
+        }
+        chunk.code[offset] = (byte) ((jump >> 8) & 0xff);
+        chunk.code[offset + 1] = (byte) (jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+        emitByte(OpCode.LOOP);
+        int offset = current.function.chunk.count - loopStart + 2;
+        if(offset > 0xffff) {
+            throw new CompileError().tooMany(new Token(TokenType.IDENTIFIER, "", null, line), "instructions in a loop body");
+        }
+        emitByte((offset >> 8) & 0xff);
+        emitByte(offset & 0xff);
+    }
+
+}
+
+
+// Reported to the Context by compile, where it is caught.
+class CompileError extends RuntimeException {
+    int line;
+    String message;
+
+    private CompileError error(int line, String message) {
+        this.line = line;
+        this.message = message;
+        return this;
+    }
+
+    public CompileError tooMany(Token location, String what) {
+        return error(location.line, "Too many " + what + " in one function.");
+    }
+
+    public CompileError unsupported(Token location) {
+        return error(location.line, "The operator '" + location.lexeme + "' can't be compiled.");
+    }
+}
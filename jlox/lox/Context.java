@@ -0,0 +1,55 @@
+package lox;
+
+import java.io.PrintStream;
+
+
+/*
+ * Everything about one run of a script that used to be static: whether it
+ * had a compile or runtime error, where its diagnostics and 'print' output
+ * go, its settings and its global variables. The Scanner, Parser,
+ * Resolver, Compiler, Interpreter and VM of a run all share one Context,
+ * so any number of runs can go on at once in a JVM as long as each has
+ * its own.
+ */
+class Context {
+    static final int DEFAULT_MAX_DEPTH = 1 << 20;
+
+    final PrintStream out;
+    final PrintStream err;
+    boolean hadError = false;
+    boolean hadRuntimeError = false;
+
+    // How many Lox calls may be in progress at once. The tree-walker runs on
+    // a JVM stack sized for this many (see Program.threads), and stops with the
+    // same error should a script still run out of it; the VM keeps its call
+    // stack on the heap and can go as deep as this allows.
+    int maxDepth = DEFAULT_MAX_DEPTH;
+    // Whether hot functions may be compiled by the Jit.
+    boolean jit = true;
+
+    // The tree-walker's global frame; the Resolver numbers its slots.
+    final Environment globals = new Environment(null, 0);
+
+    Context() {
+        this(System.out, System.err);
+    }
+
+    Context(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    void error(int line, String message) {
+        report(line, message);
+        hadError = true;
+    }
+
+    void runtimeError(int line, String message) {
+        report(line, message);
+        hadRuntimeError = true;
+    }
+
+    private void report(int line, String message) {
+        err.println("line [" + line + "]: Error : " + message);
+    }
+}
@@ -1,32 +1,56 @@
 package lox;
-import java.util.Map;
-import java.util.HashMap;
+import java.util.Arrays;
 
 public class Environment {
     private final Environment parent;
-    private final Map<String, Object> values = new HashMap<>();
+    private Object[] values;
 
-    Environment(Environment parent) {
+    Environment(Environment parent, int size) {
         this.parent = parent;
+        this.values = new Object[size];
     }
 
-    public void put(Token name, Object value) {
-        values.put(name.lexeme, value);
+    public void define(int slot, Object value) {
+        values[slot] = value;
     }
 
-    public Object get(Token name, int scope) {
-        if(scope == 0) 
-            return values.get(name.lexeme); 
-        else
-            return parent.get(name, scope - 1);
+    public Object get(int scope, int slot) {
+        return ancestor(scope).values[slot];
     }
 
-    public void assign(Token name, Object value, int scope) {
-        if(scope == 0) {
-            values.put(name.lexeme, value);
-        } else {
-            parent.assign(name, value, scope - 1);
+    public void assign(int scope, int slot, Object value) {
+        ancestor(scope).values[slot] = value;
+    }
+
+    // Moves a captured parameter into the Cell its closures will share.
+    void box(int slot) {
+        values[slot] = new Cell(values[slot]);
+    }
+
+    // Only the global frame grows; every other frame is sized by the Resolver.
+    void reserve(int size) {
+        if(size > values.length) {
+            values = Arrays.copyOf(values, Math.max(size, values.length * 2));
+        }
+    }
+
+    private Environment ancestor(int scope) {
+        Environment env = this;
+        for(int i = 0; i < scope; i++) {
+            env = env.parent;
         }
+        return env;
     }
 
 }
+
+
+// A variable captured by a closure, shared by its frame and every closure
+// that names it.
+class Cell {
+    Object value;
+
+    Cell(Object value) {
+        this.value = value;
+    }
+}
@@ -22,6 +22,9 @@ abstract class Expression {
 class Assign extends Expression {
 	final Token name;
 	final Expression value;
+	int depth;
+	int slot;
+	boolean boxed;
 
 	Assign(Token name, Expression value) {
 		this.name = name;
@@ -79,6 +82,8 @@ class Binary extends Expression {
 	final Expression left_expr;
 	final Token operator;
 	final Expression right_expr;
+	boolean numeric;
+	Specialization state = Specialization.UNINITIALIZED;
 
 	Binary(Expression left_expr, Token operator, Expression right_expr) {
 		this.left_expr = left_expr;
@@ -125,6 +130,9 @@ class Literal extends Expression {
 
 class Variable extends Expression {
 	final Token name;
+	int depth;
+	int slot;
+	boolean boxed;
 
 	Variable(Token name) {
 		this.name = name;
@@ -137,6 +145,9 @@ class Variable extends Expression {
 
 class This extends Expression {
 	final Token dis;
+	int depth;
+	int slot;
+	boolean boxed;
 
 	This(Token dis) {
 		this.dis = dis;
@@ -150,6 +161,7 @@ class This extends Expression {
 class Get extends Expression {
 	final Expression variable;
 	final Token name;
+	int site;
 
 	Get(Expression variable, Token name) {
 		this.variable = variable;
@@ -165,6 +177,7 @@ class Set extends Expression {
 	final Expression variable;
 	final Token name;
 	final Expression value;
+	int site;
 
 	Set(Expression variable, Token name, Expression value) {
 		this.variable = variable;
@@ -181,6 +194,7 @@ class Callable extends Expression {
 	final Expression name;
 	final Token paren;
 	final List<Expression> arguments;
+	int site;
 
 	Callable(Expression name, Token paren, List<Expression> arguments) {
 		this.name = name;
@@ -196,6 +210,11 @@ class Callable extends Expression {
 class Super extends Expression {
 	final Token ssup;
 	final Token name;
+	int depth;
+	int slot;
+	boolean boxed;
+	This receiver;
+	int site;
 
 	Super(Token ssup, Token name) {
 		this.ssup = ssup;
@@ -0,0 +1,46 @@
+package lox;
+
+
+/*
+ * Remembers, for one Get, Set or method call site, what a property name
+ * resolved to for each receiver Shape seen there. A Shape pins down both
+ * the class and the exact set of fields, so an entry can never go stale:
+ * once a field starts shadowing a method the instance has moved to a new
+ * Shape and simply misses. Sites that see more than LIMIT shapes stop
+ * caching and keep using the slow lookup.
+ */
+class InlineCache {
+    static final int LIMIT = 4;
+
+    Shape[] shapes;
+    // Field index, or -1 when the entry resolved to a method.
+    int[] indices;
+    // The FunctionObject for a method entry, or for a Set that adds a field,
+    // the Shape the instance moves to.
+    Object[] targets;
+    int size = 0;
+
+    int find(Shape shape) {
+        for(int i = 0; i < size; i++) {
+            if(shapes[i] == shape) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    int add(Shape shape, int index, Object target) {
+        if(size == LIMIT) {
+            return -1;
+        }
+        if(shapes == null) {
+            shapes = new Shape[LIMIT];
+            indices = new int[LIMIT];
+            targets = new Object[LIMIT];
+        }
+        shapes[size] = shape;
+        indices[size] = index;
+        targets[size] = target;
+        return size++;
+    }
+}
@@ -1,39 +1,106 @@
 package lox;
 
 import java.util.Map;
-import java.util.HashMap; 
+import java.util.HashMap;
+import java.util.Arrays;
 
 public class InstanceObject {
+    private static final Object[] NO_FIELDS = new Object[0];
+
     final ClassObject klass;
-    final Map<String, Object> fields = new HashMap<>();
+    Shape shape;
+    Object[] values;
 
     InstanceObject(ClassObject klass) {
         this.klass = klass;
+        this.shape = klass.shape;
+        this.values = (klass.fieldCapacity == 0) ? NO_FIELDS : new Object[klass.fieldCapacity];
     }
 
     public Object getField(Token name) {
-        if(fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme); 
-        } 
-        FunctionObject method = klass.findMethod(name.lexeme); 
+        int index = shape.indexOf(name.lexeme);
+        if(index >= 0) {
+            return values[index];
+        }
+        FunctionObject method = klass.findMethod(name.lexeme);
         if(method != null) {
-            return bindMethod(method); 
+            return bindMethod(method);
         } else {
-            throw new InstanceError(this).fieldNotFound(name); 
+            throw new InstanceError(this).fieldNotFound(name);
         }
     }
 
     public void set(Token name, Object value) {
-        fields.put(name.lexeme, value); 
+        int index = shape.indexOf(name.lexeme);
+        if(index < 0) {
+            index = addField(name.lexeme);
+        }
+        values[index] = value;
+    }
+
+    private int addField(String name) {
+        transition(shape.withField(name));
+        return shape.size - 1;
+    }
+
+    void transition(Shape next) {
+        shape = next;
+        if(next.size > values.length) {
+            values = Arrays.copyOf(values, Math.max(4, values.length * 2));
+        }
+        // Later instances of the class start out with room for every field
+        // seen so far, so they rarely have to grow.
+        if(next.size > klass.fieldCapacity) {
+            klass.fieldCapacity = next.size;
+        }
     }
 
 
     private FunctionObject bindMethod(FunctionObject func) {
-        return func.bind(this); 
+        return func.bind(this);
     }
 
+    @Override
+    public String toString() {
+        return klass.name.lexeme + " instance";
+    }
 
 }
 
 
+/*
+ * The layout of an instance: which field lives at which index of its
+ * values array. Instances of one class that gained the same fields in the
+ * same order share a Shape, and adding a field moves an instance along a
+ * transition to the next Shape instead of copying a map into the object.
+ */
+class Shape {
+    private final Map<String, Integer> indices;
+    private final Map<String, Shape> transitions = new HashMap<>();
+    final int size;
 
+    Shape() {
+        this.indices = new HashMap<>();
+        this.size = 0;
+    }
+
+    private Shape(Shape parent, String name) {
+        this.indices = new HashMap<>(parent.indices);
+        this.indices.put(name, parent.size);
+        this.size = parent.size + 1;
+    }
+
+    int indexOf(String name) {
+        Integer index = indices.get(name);
+        return (index == null) ? -1 : index;
+    }
+
+    Shape withField(String name) {
+        Shape next = transitions.get(name);
+        if(next == null) {
+            next = new Shape(this, name);
+            transitions.put(name, next);
+        }
+        return next;
+    }
+}
@@ -1,23 +1,43 @@
 package lox;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.HashMap;
 
 
 public class Interpreter implements Expression.Visitor<Object>, Statement.Visitor<Void> {
+    final Context context;
     public Environment env;
-    private Map<Expression, Integer> scopes = new HashMap<>();
+    private final Environment globals;
+    // The function being interpreted, whose loops count towards its hotness.
+    FunctionObject current;
+    // Lox calls currently in progress.
+    private int depth = 0;
+    // Set by a tail Return for the Callable it evaluates next.
+    private boolean inTailPosition = false;
+    // Inline caches by site number. They hold this run's classes and
+    // methods, so they live here rather than in the AST, which can then be
+    // shared by any number of Interpreters.
+    private InlineCache[] caches = new InlineCache[16];
  
-    Interpreter() {
-        env = new Environment(null);
+    Interpreter(Context context) {
+        this.context = context;
+        env = context.globals;
+        globals = env;
+        defineNatives();
     } 
-    Interpreter(Environment parent) {
-        env = new Environment(parent); 
+
+    // The Resolver declares the natives first, so they sit in slots 0..n-1.
+    private void defineNatives() {
+        globals.reserve(NativeFunction.LIBRARY.length);
+        for(int i = 0; i < NativeFunction.LIBRARY.length; i++) {
+            globals.define(i, NativeFunction.LIBRARY[i]);
+        }
     }
 
-    public void resolve(Expression expr, int scope) {
-        scopes.put(expr, scope); 
+    public void reserveGlobals(int size) {
+        globals.reserve(size);
     }
 
     String stringify(Object value) {
@@ -29,8 +49,20 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
     }
 
     public void interpret(List<Statement> program) {
-        for(Statement statement: program) {
-            execute(statement);
+        try {
+            execute(program);
+        } catch(InterpreterError error) {
+            context.runtimeError(error.line, error.message);
+            throw error;
+        }
+    }
+
+    // Calls accept itself rather than going through execute(Statement):
+    // every Lox call nests this loop, and a frame less here is a deeper
+    // recursion on the same stack.
+    void execute(List<Statement> statements) {
+        for(Statement statement: statements) {
+            statement.accept(this);
         }
     }
 
@@ -42,11 +74,78 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
 
     @Override
     public Void visitLoxFunction(LoxFunction statement) {
-        Object funcObject = new FunctionObject(statement.parameters, statement.funCode, env, false); 
-        env.put(statement.name, funcObject); 
+        // A function that refers to itself captures its own Cell, so the
+        // Cell has to exist before the function does.
+        Cell cell = declareCell(statement.slot, statement.boxed);
+        FunctionObject funcObject = new FunctionObject(statement.name.lexeme, statement.parameters, statement.funCode, statement.frameSize, statement.boxedSlots, capture(statement, env), statement.type); 
+        if(context.jit) {
+            funcObject.declaration = statement;
+        }
+        define(statement.slot, cell, funcObject); 
         return null;
     }
 
+    private static final Cell[] NO_UPVALUES = new Cell[0];
+
+    // Collects the upvalues of a closure created in 'at'.
+    private Cell[] capture(LoxFunction function, Environment at) {
+        int count = function.upvalueSlots.length;
+        if(count == 0) {
+            return NO_UPVALUES;
+        }
+        Cell[] upvalues = new Cell[count];
+        for(int i = 0; i < count; i++) {
+            int depth = function.upvalueDepths[i];
+            if(depth == Resolver.UPVALUE) {
+                upvalues[i] = current.upvalues[function.upvalueSlots[i]];
+            } else {
+                upvalues[i] = (Cell) at.get(depth, function.upvalueSlots[i]);
+            }
+        }
+        return upvalues;
+    }
+
+    private Cell declareCell(int slot, boolean boxed) {
+        if(!boxed) {
+            return null;
+        }
+        Cell cell = new Cell(null);
+        env.define(slot, cell);
+        return cell;
+    }
+
+    private void define(int slot, Cell cell, Object value) {
+        if(cell != null) {
+            cell.value = value;
+        } else {
+            env.define(slot, value);
+        }
+    }
+
+    private Object read(int depth, int slot, boolean boxed) {
+        if(depth >= 0) {
+            Object value = env.get(depth, slot);
+            return boxed ? ((Cell) value).value : value;
+        } else if(depth == Resolver.GLOBAL) {
+            return globals.get(0, slot);
+        }
+        return current.upvalues[slot].value;
+    }
+
+    private void write(int depth, int slot, boolean boxed, Object value) {
+        if(depth >= 0) {
+            if(boxed) {
+                ((Cell) env.get(depth, slot)).value = value;
+            } else {
+                env.assign(depth, slot, value);
+            }
+        } else if(depth == Resolver.GLOBAL) {
+            globals.assign(0, slot, value);
+        } else {
+            current.upvalues[slot].value = value;
+        }
+    }
+
     @Override
     public Void visitLoxClass(LoxClass statement) {
         Map<String, FunctionObject> methods = new HashMap<>(); 
@@ -54,7 +153,7 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
         Object pClassObject;
         ClassObject parentClass = null;
         if(statement.parentClass != null) {
-            pClassObject = env.get(statement.parentClass.name, scopes.get(statement.parentClass));  
+            pClassObject = statement.parentClass.accept(this);  
             if(pClassObject instanceof ClassObject) {
                 parentClass = (ClassObject) pClassObject;
             }
@@ -62,25 +161,35 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
                 throw new LoxRuntimeError(statement.name).error("The identifier is not a Lox Class."); 
         }
 
+        Cell cell = declareCell(statement.slot, statement.boxed);
         Environment methodEnv = env; 
         if(statement.parentClass != null) {
-            methodEnv = new Environment(methodEnv); 
-            methodEnv.put(new Token(TokenType.SUPER, "super", null, -1), parentClass); 
+            methodEnv = new Environment(methodEnv, 1); 
+            methodEnv.define(0, new Cell(parentClass)); 
         } 
 
+        // Inherited methods are copied in first and overridden below, so
+        // every lookup on the class is a single probe whatever its depth.
+        if(parentClass != null) {
+            methods.putAll(parentClass.methods);
+        }
         for(LoxFunction stmt: statement.methods) {
-            methods.put(stmt.name.lexeme, new FunctionObject(stmt.parameters, stmt.funCode, methodEnv, stmt.type == FunctionType.INITIALIZER)); 
+            methods.put(stmt.name.lexeme, new FunctionObject(stmt.name.lexeme, stmt.parameters, stmt.funCode, stmt.frameSize, stmt.boxedSlots, capture(stmt, methodEnv), stmt.type)); 
         }
 
 
-        env.put(statement.name, new ClassObject(statement.name, methods, parentClass));
+        define(statement.slot, cell, new ClassObject(statement.name, methods, parentClass));
         return null; 
     }
     
 
     @Override 
     public Void visitBlock(Block statement) {
-        Environment nenv = new Environment(env); 
+        if(statement.frameSize == 0) {
+            execute(statement.statements);
+            return null;
+        }
+        Environment nenv = new Environment(env, statement.frameSize); 
         Environment prev = env;
         env = nenv;
         for(Statement stmt: statement.statements) {
@@ -94,14 +203,17 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
     @Override
     public Void visitReturn(Return statement) {
         Object value = null;
-        if(statement.expr != null) value = statement.expr.accept(this);
+        if(statement.expr != null) {
+            inTailPosition = statement.tail;
+            value = statement.expr.accept(this);
+        }
         throw new ReturnValue(value);
     }
 
     @Override
     public Void visitPrint(Print statement) {
         Object value = statement.expr.accept(this);
-        System.out.println(stringify(value));
+        context.out.println(stringify(value));
         return null;
     }
 
@@ -113,10 +225,9 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
 
     @Override
     public Void visitVar(Var statement) {
-        Token name = statement.name;
         Object value = null; 
         if(statement.value != null) value = statement.value.accept(this); 
-        env.put(name, value);
+        env.define(statement.slot, statement.boxed ? new Cell(value) : value);
         return null;
     }
 
@@ -151,13 +262,15 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
 
     @Override
     public Void visitWhile(While statement) {
-        Environment nenv = new Environment(env); 
-        Environment prev = env;
-        env = nenv;
+        Environment loopEnv = env;
+        Environment bodyEnv = bodyFrame(statement.whileCode, loopEnv);
+        List<Statement> body = statement.whileCode.statements;
         while(isTruth(statement.whileClause)) {
-            execute(statement.whileCode);
+            env = bodyEnv;
+            execute(body);
+            env = loopEnv;
+            if(current != null) current.hotness++;
         }
-        env = prev;
         return null;
 
     }   
@@ -165,19 +278,31 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
 
     @Override 
     public Void visitFor(For statement) {
-        Environment nenv = new Environment(env);
         Environment prev = env;
-        env = nenv;
+        Environment loopEnv = (statement.frameSize == 0) ? env : new Environment(env, statement.frameSize);
+        env = loopEnv;
         if(statement.init != null) execute(statement.init); 
 
-        while(isTruth(statement.forClause) || statement.forClause == null) {
-            execute(statement.forCode);
+        Environment bodyEnv = bodyFrame(statement.forCode, loopEnv);
+        List<Statement> body = statement.forCode.statements;
+        while(statement.forClause == null || isTruth(statement.forClause)) {
+            env = bodyEnv;
+            execute(body);
+            env = loopEnv;
             if(statement.forComp != null) statement.forComp.accept(this);
+            if(current != null) current.hotness++;
         }
         env = prev; 
         return null; 
     }
 
+    // One frame serves every iteration of a loop body. Nothing can see the
+    // previous iteration's values: a local can't be read before its 'var'
+    // runs again, and closures hold Cells, never the frame itself.
+    private Environment bodyFrame(Block body, Environment loopEnv) {
+        return (body.frameSize == 0) ? loopEnv : new Environment(loopEnv, body.frameSize);
+    }
+
 
 
 
@@ -186,7 +311,7 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
     @Override
     public Object visitAssign(Assign expr) {
         Object value = expr.value.accept(this); 
-        env.assign(expr.name, value, scopes.get(expr));
+        write(expr.depth, expr.slot, expr.boxed, value);
         return value;
     }
 
@@ -195,8 +320,7 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
     public Object visitGet(Get expr) {
         Object getFromObject = expr.variable.accept(this); 
         if(getFromObject instanceof InstanceObject) {
-            InstanceObject getFrom = (InstanceObject) getFromObject;
-            return getFrom.getField(expr.name); 
+            return getProperty((InstanceObject) getFromObject, expr.name, cache(expr.site)); 
         } else {
             throw new GetError().notLoxObject(expr.name); 
         }
@@ -208,7 +332,7 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
         if(getFromObject instanceof InstanceObject) {
             InstanceObject getFrom = (InstanceObject) getFromObject;
             Object value = expr.value.accept(this); 
-            getFrom.set(expr.name, value); 
+            setProperty(getFrom, expr.name, value, cache(expr.site)); 
             return value;
         } else {
             throw new GetError().notLoxObject(expr.name); 
@@ -216,27 +340,101 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
         
     }
 
+    private InlineCache cache(int site) {
+        if(site >= caches.length) {
+            caches = Arrays.copyOf(caches, Math.max(site + 1, 2 * caches.length));
+        }
+        InlineCache cache = caches[site];
+        if(cache == null) {
+            cache = new InlineCache();
+            caches[site] = cache;
+        }
+        return cache;
+    }
+
+    // Returns the cache entry for the instance's shape, filling it on a miss,
+    // or -1 once the site has seen too many shapes to cache another.
+    private int lookup(InstanceObject instance, Token name, InlineCache cache) {
+        int entry = cache.find(instance.shape);
+        if(entry >= 0) {
+            return entry;
+        }
+        int index = instance.shape.indexOf(name.lexeme);
+        FunctionObject method = null;
+        if(index < 0) {
+            method = instance.klass.findMethod(name.lexeme);
+            if(method == null) {
+                throw new InstanceError(instance).fieldNotFound(name);
+            }
+        }
+        return cache.add(instance.shape, index, method);
+    }
+
+    private Object getProperty(InstanceObject instance, Token name, InlineCache cache) {
+        int entry = lookup(instance, name, cache);
+        if(entry < 0) {
+            return instance.getField(name);
+        }
+        int index = cache.indices[entry];
+        if(index >= 0) {
+            return instance.values[index];
+        }
+        return ((FunctionObject) cache.targets[entry]).bind(instance);
+    }
+
+    private void setProperty(InstanceObject instance, Token name, Object value, InlineCache cache) {
+        int entry = cache.find(instance.shape);
+        if(entry < 0) {
+            Shape shape = instance.shape;
+            int index = shape.indexOf(name.lexeme);
+            Shape next = (index < 0) ? shape.withField(name.lexeme) : null;
+            cache.add(shape, (index < 0) ? next.size - 1 : index, next);
+            instance.set(name, value);
+            return;
+        }
+        Shape next = (Shape) cache.targets[entry];
+        if(next != null) {
+            instance.transition(next);
+        }
+        instance.values[cache.indices[entry]] = value;
+    }
+
 
     @Override
     public Object visitThis(This expr) {
-        return env.get(expr.dis, scopes.get(expr));
+        return read(expr.depth, expr.slot, expr.boxed);
     }
 
 
     @Override
     public Object visitSuper(Super expr) {
-        Object value = env.get(expr.ssup, scopes.get(expr));
+        if(expr.name != null) {
+            return superMethod(expr).bind((InstanceObject) visitThis(expr.receiver));
+        }
+        Object value = read(expr.depth, expr.slot, expr.boxed);
         if(value instanceof ClassObject) {
-            if(expr.name != null) {
-                ClassObject parentClass = (ClassObject) value;
-                FunctionObject parentMethod = parentClass.findMethod(expr.name.lexeme) ;
-                if(parentMethod != null) {
-                    return parentMethod.bind((InstanceObject) env.get(new Token(TokenType.THIS, "this", null, expr.ssup.line), scopes.get(expr) - 1));
-                } else {
-                    throw new LoxRuntimeError(expr.ssup).error("The name doesn't resolve to a defined method."); 
-                }
+            return value;
+        } else {
+            throw new LoxRuntimeError(expr.ssup).error("The super keyword doesn't point to a LoxClass."); 
+        }
+    }
+
+    private FunctionObject superMethod(Super expr) {
+        Object value = read(expr.depth, expr.slot, expr.boxed);
+        if(value instanceof ClassObject) {
+            // Keyed by the parent class's empty Shape, which is unique to it.
+            ClassObject parentClass = (ClassObject) value;
+            InlineCache cache = cache(expr.site);
+            int entry = cache.find(parentClass.shape);
+            if(entry >= 0) {
+                return (FunctionObject) cache.targets[entry];
+            }
+            FunctionObject parentMethod = parentClass.findMethod(expr.name.lexeme) ;
+            if(parentMethod != null) {
+                cache.add(parentClass.shape, -1, parentMethod);
+                return parentMethod;
             } else {
-                return value;
+                throw new LoxRuntimeError(expr.ssup).error("The name doesn't resolve to a defined method."); 
             }
         } else {
             throw new LoxRuntimeError(expr.ssup).error("The super keyword doesn't point to a LoxClass."); 
@@ -278,7 +476,7 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
     @Override
     public Object visitUnary(Unary expr) {
         if(expr.operator.type == TokenType.MINUS) {
-            return - (double) expr.expr.accept(this); 
+            return evaluateDouble(expr); 
         } else {
             return !isTruth(expr.expr); 
         }
@@ -286,45 +484,53 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
     @Override
     public Object visitBinary(Binary expr) {
         Token operator = expr.operator;
-        Object left_value = expr.left_expr.accept(this); 
-        Object right_value = expr.right_expr.accept(this);
         switch(operator.type) {
-            case COMMA:
-                return right_value;
             case MINUS:
-                if(left_value instanceof Double && right_value instanceof Double) {
-                    return (Double) left_value - (Double) right_value;
-                } else {
-                    throw new BinaryError(operator, left_value, right_value).typeError();
-                }
-                
-            case PLUS:
-                if(left_value instanceof Double && right_value instanceof Double) {
-                    return (Double) left_value + (Double) right_value;
-                } else if(left_value instanceof String && right_value instanceof String) {
-                    return (String) left_value + (String) right_value;
-                } else {
-                    throw new BinaryError(operator, left_value, right_value).typeError();
-                }
-                
             case STAR:
-                if(left_value instanceof Double && right_value instanceof Double) {
-                    return (Double) left_value * (Double) right_value;
-                } else {
-                    throw new BinaryError(operator, left_value, right_value).typeError();
-                }
-                
             case SLASH:
-                if(left_value instanceof Double && right_value instanceof Double) {
-                    if((Double) right_value != 0) {
-                        return (Double) left_value / (Double) right_value;
-                    } else {
-                        throw new BinaryError(operator, left_value, right_value).invalidArgument(); 
+                return evaluateDouble(expr);
+            case PLUS:
+                if(isNumeric(expr)) {
+                    try {
+                        return evaluateDouble(expr);
+                    } catch(UnexpectedResult result) {
+                        return result.value;
                     }
-                } else {
-                    throw new BinaryError(operator, left_value, right_value).typeError();
                 }
+                if(expr.state == Specialization.STRING) {
+                    Object left_value = expr.left_expr.accept(this);
+                    Object right_value = expr.right_expr.accept(this);
+                    if(LoxString.isString(left_value) && LoxString.isString(right_value)) {
+                        return LoxString.concat(left_value, right_value);
+                    }
+                    expr.state = Specialization.GENERIC;
+                    return add(operator, left_value, right_value);
+                }
+                break;
+            case BANG_EQUALS:
+            case DOUBLE_EQUALS:
+                if(expr.state == Specialization.DOUBLE) {
+                    return numericEquality(expr);
+                }
+                break;
+            case GREATER:
+            case GREATER_EQUALS:
+            case LESS:
+            case LESS_EQUALS:
+                return compare(expr);
+        }
+
+        Object left_value = expr.left_expr.accept(this); 
+        Object right_value = expr.right_expr.accept(this);
+        if(expr.state == Specialization.UNINITIALIZED) {
+            specialize(expr, left_value, right_value);
+        }
+        switch(operator.type) {
+            case COMMA:
+                return right_value;
                 
+            case PLUS:
+                return add(operator, left_value, right_value);
             
             case BANG_EQUALS:
                 if(!isEqual(left_value, right_value)) {
@@ -338,37 +544,175 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
                 } else {
                     return false;
                 }
-                
-            case GREATER:
-                if(left_value instanceof Double && right_value instanceof Double) {
-                    return (Double) left_value > (Double) right_value;
-                } else {
-                    throw new BinaryError(operator, left_value, right_value).typeError();
+            
+        }
+        return new Object(); 
+    }
+
+    private Object add(Token operator, Object left_value, Object right_value) {
+        if(left_value instanceof Double && right_value instanceof Double) {
+            return (Double) left_value + (Double) right_value;
+        } else if(LoxString.isString(left_value) && LoxString.isString(right_value)) {
+            return LoxString.concat(left_value, right_value);
+        } else {
+            throw new BinaryError(operator, left_value, right_value).typeError();
+        }
+    }
+
+
+    // A '+', '==' or '!=' node starts out generic and, after its first
+    // evaluation, rewrites itself to the operand types it saw. When a later
+    // evaluation breaks that assumption the node falls back to GENERIC for
+    // good, so a polymorphic site never flips back and forth. (Runs sharing
+    // a Program can still race on it; see Program.)
+
+    private void specialize(Binary expr, Object left_value, Object right_value) {
+        if(left_value instanceof Double && right_value instanceof Double) {
+            expr.state = Specialization.DOUBLE;
+        } else if(expr.operator.type == TokenType.PLUS && LoxString.isString(left_value) && LoxString.isString(right_value)) {
+            expr.state = Specialization.STRING;
+        } else {
+            expr.state = Specialization.GENERIC;
+        }
+    }
+
+    private boolean numericEquality(Binary expr) {
+        double left = numericOperand(expr.left_expr);
+        Object left_value = lastOperand;
+        double right = numericOperand(expr.right_expr);
+        Object right_value = lastOperand;
+        boolean equal;
+        if(left_value == NUMBER && right_value == NUMBER) {
+            // Same answer as Double.equals, including NaN and -0.0.
+            equal = Double.doubleToLongBits(left) == Double.doubleToLongBits(right);
+        } else {
+            expr.state = Specialization.GENERIC;
+            equal = isEqual(left_value == NUMBER ? left : left_value, right_value == NUMBER ? right : right_value);
+        }
+        return (expr.operator.type == TokenType.DOUBLE_EQUALS) == equal;
+    }
+
+
+    // Arithmetic is evaluated on primitive doubles all the way down an
+    // expression tree and only boxed once the result leaves visitBinary or
+    // visitUnary. A Binary is 'numeric' when the Resolver could tell it
+    // always yields a number (or a type error), or when it is a '+' that has
+    // specialized itself to numbers; the latter throws UnexpectedResult if
+    // it meets strings after all.
+
+    static boolean isNumeric(Expression expr) {
+        if(expr instanceof Binary) {
+            Binary binary = (Binary) expr;
+            return binary.numeric || (binary.state == Specialization.DOUBLE && binary.operator.type == TokenType.PLUS);
+        } else if(expr instanceof Literal) {
+            return ((Literal) expr).value instanceof Double;
+        } else if(expr instanceof Grouping) {
+            return isNumeric(((Grouping) expr).expr);
+        } else if(expr instanceof Unary) {
+            return ((Unary) expr).operator.type == TokenType.MINUS;
+        }
+        return false;
+    }
+
+    private static final Object NUMBER = new Object();
+    private Object lastOperand = NUMBER;
+
+    // Sets lastOperand to NUMBER when the operand was a number, or to the
+    // offending value otherwise so the caller can report it.
+    private double numericOperand(Expression operand) {
+        if(isNumeric(operand)) {
+            try {
+                double value = evaluateDouble(operand);
+                lastOperand = NUMBER;
+                return value;
+            } catch(UnexpectedResult result) {
+                lastOperand = result.value;
+                return 0;
+            }
+        }
+        return number(operand.accept(this));
+    }
+
+    // The same for an operand that was evaluated already.
+    private double number(Object value) {
+        if(value instanceof Double) {
+            lastOperand = NUMBER;
+            return (Double) value;
+        }
+        lastOperand = value;
+        return 0;
+    }
+
+    // What evaluateDouble throws when an operand was not a number: the sum
+    // for a '+' the Optimizer could not prove numeric, otherwise the error.
+    private RuntimeException notNumbers(Binary binary, Object left, Object right) {
+        if(!binary.numeric) {
+            binary.state = Specialization.GENERIC;
+            return new UnexpectedResult(add(binary.operator, left, right));
+        }
+        return new BinaryError(binary.operator, left, right).typeError();
+    }
+
+    private double evaluateDouble(Expression expr) {
+        if(expr instanceof Literal) {
+            return (Double) ((Literal) expr).value;
+        } else if(expr instanceof Grouping) {
+            return evaluateDouble(((Grouping) expr).expr);
+        } else if(expr instanceof Unary) {
+            Unary unary = (Unary) expr;
+            double value = numericOperand(unary.expr);
+            if(lastOperand != NUMBER) {
+                throw new LoxRuntimeError(unary.operator).error("The unary operator: '-' can only negate numbers.");
+            }
+            return -value;
+        }
+
+        // An operand that is not numeric, like the call in '1 + f(n - 1)', is
+        // evaluated in this frame instead of numericOperand's, so recursion
+        // through it takes less stack.
+        Binary binary = (Binary) expr;
+        Token operator = binary.operator;
+        double left = isNumeric(binary.left_expr) ? numericOperand(binary.left_expr) : number(binary.left_expr.accept(this));
+        Object left_value = lastOperand;
+        double right = isNumeric(binary.right_expr) ? numericOperand(binary.right_expr) : number(binary.right_expr.accept(this));
+        Object right_value = lastOperand;
+        if(left_value != NUMBER || right_value != NUMBER) {
+            throw notNumbers(binary, left_value == NUMBER ? left : left_value, right_value == NUMBER ? right : right_value);
+        }
+        switch(operator.type) {
+            case MINUS:
+                return left - right;
+            case PLUS:
+                return left + right;
+            case STAR:
+                return left * right;
+            default:
+                if(right == 0) {
+                    throw new BinaryError(operator, left, right).invalidArgument();
                 }
-                
+                return left / right;
+        }
+    }
+
+    private boolean compare(Binary expr) {
+        Token operator = expr.operator;
+        double left = numericOperand(expr.left_expr);
+        Object left_value = lastOperand;
+        double right = numericOperand(expr.right_expr);
+        Object right_value = lastOperand;
+        if(left_value != NUMBER || right_value != NUMBER) {
+            throw new BinaryError(operator, left_value == NUMBER ? left : left_value, right_value == NUMBER ? right : right_value).typeError();
+        }
+        switch(operator.type) {
+            case GREATER:
+                return left > right;
             case GREATER_EQUALS:
-                if(left_value instanceof Double && right_value instanceof Double) {
-                    return (Double) left_value >= (Double) right_value;
-                } else {
-                    throw new BinaryError(operator, left_value, right_value).typeError();
-                }
-                
+                return left >= right;
             case LESS:
-                if(left_value instanceof Double && right_value instanceof Double) {
-                    return (Double) left_value < (Double) right_value;
-                } else {
-                    throw new BinaryError(operator, left_value, right_value).typeError();
-                }
-                
-            case LESS_EQUALS:
-                if(left_value instanceof Double && right_value instanceof Double) {
-                    return (Double) left_value <= (Double) right_value;
-                } else {
-                    throw new BinaryError(operator, left_value, right_value).typeError();
-                }
-            
+                return left < right;
+            default:
+                return left <= right;
         }
-        return new Object(); 
     }
 
     @Override
@@ -387,25 +731,161 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
 
     @Override
     public Object visitVariable(Variable expr) {
-        return env.get(expr.name, scopes.get(expr)); 
+        return read(expr.depth, expr.slot, expr.boxed); 
     }
 
 
+    // Every Lox call nests a call to this method, so it finds a Lox function
+    // and calls it without handing off to helpers, and a recursion gets as
+    // deep as it can on the thread's stack.
     @Override 
     public Object visitCallable(Callable expr) {
-        Object callableValue = expr.name.accept(this); 
-        if(callableValue instanceof CallableEntity && callableValue != null) {
-            CallableEntity callableObject = (CallableEntity) callableValue;
-            List<Object> arguments = new ArrayList<>();
-            for(Expression e: expr.arguments) {
-                arguments.add(e.accept(this));
+        boolean tail = inTailPosition;
+        inTailPosition = false;
+        // The Lox function to call and its 'this'; anything else that can be
+        // called is called on the way and returns early.
+        FunctionObject function = null;
+        InstanceObject receiver = null;
+        InstanceObject constructed = null;
+        Object callableValue = null;
+        if(expr.name instanceof Get) {
+            Get get = (Get) expr.name;
+            Object object = get.variable.accept(this);
+            if(!(object instanceof InstanceObject)) {
+                throw new GetError().notLoxObject(get.name);
+            }
+            InstanceObject instance = (InstanceObject) object;
+            InlineCache cache = cache(expr.site);
+            int entry = lookup(instance, get.name, cache);
+            if(entry >= 0) {
+                int index = cache.indices[entry];
+                if(index >= 0) {
+                    callableValue = instance.values[index];
+                } else {
+                    function = (FunctionObject) cache.targets[entry];
+                }
+            } else {
+                int index = instance.shape.indexOf(get.name.lexeme);
+                if(index >= 0) {
+                    callableValue = instance.values[index];
+                } else {
+                    function = instance.klass.findMethod(get.name.lexeme);
+                }
             }
-            return callableObject.call(arguments, this); 
+            receiver = instance;
+        } else if(expr.name instanceof Super && ((Super) expr.name).name != null) {
+            Super sup = (Super) expr.name;
+            function = superMethod(sup);
+            receiver = (InstanceObject) visitThis(sup.receiver);
         } else {
-            throw new CallableError(expr.paren).invalidCallable(callableValue);
+            callableValue = expr.name.accept(this); 
+        }
+        if(function == null) {
+            if(callableValue instanceof FunctionObject) {
+                function = (FunctionObject) callableValue;
+                receiver = function.receiver;
+            } else if(callableValue instanceof ClassObject) {
+                ClassObject klass = (ClassObject) callableValue;
+                constructed = new InstanceObject(klass);
+                if(klass.init == null) {
+                    for(int i = 0; i < expr.arguments.size(); i++) {
+                        expr.arguments.get(i).accept(this);
+                    }
+                    return constructed;
+                }
+                function = klass.init;
+                receiver = constructed;
+                tail = false;
+            } else {
+                return callOther(expr, callableValue);
+            }
+        }
+
+        // Lox functions get their arguments evaluated straight into the slots
+        // of the callee's new frame: no argument list, and the arity check is
+        // an int compare against the call site.
+        List<Expression> arguments = expr.arguments;
+        int count = arguments.size();
+        if(count != function.arity) {
+            throw new CallableError(expr.paren).invalidNumberOfArguments(count, function.arity);
+        }
+        Environment frame = function.newFrame();
+        int slot = function.firstParameter;
+        switch(count) {
+            case 0:
+                break;
+            case 1:
+                frame.define(slot, arguments.get(0).accept(this));
+                break;
+            case 2:
+                frame.define(slot, arguments.get(0).accept(this));
+                frame.define(slot + 1, arguments.get(1).accept(this));
+                break;
+            case 3:
+                frame.define(slot, arguments.get(0).accept(this));
+                frame.define(slot + 1, arguments.get(1).accept(this));
+                frame.define(slot + 2, arguments.get(2).accept(this));
+                break;
+            case 4:
+                frame.define(slot, arguments.get(0).accept(this));
+                frame.define(slot + 1, arguments.get(1).accept(this));
+                frame.define(slot + 2, arguments.get(2).accept(this));
+                frame.define(slot + 3, arguments.get(3).accept(this));
+                break;
+            default:
+                for(int i = 0; i < count; i++) {
+                    frame.define(slot + i, arguments.get(i).accept(this));
+                }
+        }
+        // Lox calls nest Java calls, so running out of JVM stack ends the
+        // script just like going past the Context's maxDepth does.
+        if(depth == context.maxDepth) {
+            throw new StackOverflow(expr.paren);
+        }
+        depth++;
+        try {
+            Object result = null;
+            if(function.declaration != null) {
+                result = Jit.run(function, frame, globals, context.maxDepth - depth);
+            }
+            if(result == null) {
+                if(tail) {
+                    throw new TailCall(function, receiver, frame);
+                }
+                result = function.execute(receiver, frame, this);
+            }
+            return (constructed != null) ? constructed : result;
+        } catch(StackOverflowError error) {
+            throw new StackOverflow(expr.paren);
+        } finally {
+            depth--;
         }
     }
 
+    // Natives and any other CallableEntity, which take their arguments as a list.
+    private Object callOther(Callable expr, Object callableValue) {
+        if(callableValue instanceof NativeFunction) {
+            NativeFunction nativeFunction = (NativeFunction) callableValue;
+            int count = expr.arguments.size();
+            if(count != nativeFunction.arity) {
+                throw new CallableError(expr.paren).invalidNumberOfArguments(count, nativeFunction.arity);
+            }
+            return nativeFunction.call((count == 0) ? List.of() : evaluateArguments(expr), this);
+        } else if(callableValue instanceof CallableEntity && callableValue != null) {
+            CallableEntity callableObject = (CallableEntity) callableValue;
+            return callableObject.call(evaluateArguments(expr), this); 
+        }
+        throw new CallableError(expr.paren).invalidCallable(callableValue);
+    }
+
+    private List<Object> evaluateArguments(Callable expr) {
+        List<Object> arguments = new ArrayList<>(expr.arguments.size());
+        for(int i = 0; i < expr.arguments.size(); i++) {
+            arguments.add(expr.arguments.get(i).accept(this));
+        }
+        return arguments;
+    }
+
     private boolean isTruth(Expression expr) {
         Object result = expr.accept(this); 
         if(result == null) {
@@ -418,6 +898,8 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
     }
 
     private boolean isEqual(Object v, Object u) {
+        v = LoxString.flatten(v);
+        u = LoxString.flatten(u);
         if(v == null && u == null) {
             return true;
         } else if (v == null || u == null) {
@@ -430,7 +912,34 @@ public class Interpreter implements Expression.Visitor<Object>, Statement.Visito
 }
 
 
+// A runtime error only records where and what went wrong; whichever engine
+// was running reports it to its Context once it reaches the top.
 abstract class InterpreterError extends RuntimeException {
+    int line;
+    String message;
+
+    InterpreterError() {}
+
+    // For an error that knows its line before its message.
+    InterpreterError(int line) {
+        this.line = line;
+    }
+
+    InterpreterError report(int line, String message) {
+        this.line = line;
+        this.message = message;
+        return this;
+    }
+}
+
+
+class UnexpectedResult extends RuntimeException {
+    final Object value;
+
+    UnexpectedResult(Object value) {
+        super(null, null, false, false);
+        this.value = value;
+    }
 }
 
 
@@ -440,11 +949,17 @@ class LoxRuntimeError extends InterpreterError{
         this.location = location;
     }
     public InterpreterError error(String message) {
-        Lox.runtimeError(location.line, message);
+        report(location.line, message);
         return this;
     }
 }
 
+class StackOverflow extends InterpreterError {
+    StackOverflow(Token location) {
+        report(location.line, "Stack overflow.");
+    }
+}
+
 class BinaryError extends InterpreterError {
     private Token operator;
     private Object left_value;
@@ -452,17 +967,17 @@ class BinaryError extends InterpreterError {
     
     BinaryError(Token operator, Object left_value, Object right_value) {
         this.operator = operator;
-        this.left_value = left_value;
-        this.right_value = right_value;
+        this.left_value = LoxString.flatten(left_value);
+        this.right_value = LoxString.flatten(right_value);
     }
     
     public InterpreterError typeError() {
-        Lox.runtimeError(operator.line, "The binary operator: '" + operator.lexeme + "' can't combine the values of type " + left_value.getClass().getName() + " and " + right_value.getClass().getName() + ".");
+        report(operator.line, "The binary operator: '" + operator.lexeme + "' can't combine the values of type " + left_value.getClass().getName() + " and " + right_value.getClass().getName() + ".");
         return this;
     }
 
     public InterpreterError invalidArgument() {
-        Lox.runtimeError(operator.line, "Binary operator: '" + operator.lexeme + "' can't operate on values " + left_value.toString() + ", " + right_value.toString());
+        report(operator.line, "Binary operator: '" + operator.lexeme + "' can't operate on values " + left_value.toString() + ", " + right_value.toString());
         return this;
     }
 }
@@ -475,18 +990,19 @@ class CallableError extends InterpreterError {
         this.location = location;
     }
     public InterpreterError invalidCallable(Object value) {
-        Lox.runtimeError(location.line, "The object of type " + ((value != null) ? value.getClass().getName() : "nil") + " cannot be called.");
+        value = LoxString.flatten(value);
+        report(location.line, "The object of type " + ((value != null) ? value.getClass().getName() : "nil") + " cannot be called.");
         return this;
     }
     public InterpreterError invalidNumberOfArguments(int given, int expected) {
-        Lox.runtimeError(location.line, "The number of arguments were not as expected. Given: " + Integer.toString(given) + ", Expected: " + Integer.toString(expected));
+        report(location.line, "The number of arguments were not as expected. Given: " + Integer.toString(given) + ", Expected: " + Integer.toString(expected));
         return this;
     }
 }
 
 class GetError extends InterpreterError {
     public InterpreterError notLoxObject(Token name) {
-        Lox.runtimeError(name.line, "The dot accessor can only run on Lox Objects.");
+        report(name.line, "The dot accessor can only run on Lox Objects.");
         return this;
     }
 }
@@ -499,7 +1015,7 @@ class InstanceError extends InterpreterError {
     }
 
     public InterpreterError fieldNotFound(Token name) {
-        Lox.runtimeError(name.line, "The object does contain the field name '" + name.lexeme + "'.");
+        report(name.line, "The object does contain the field name '" + name.lexeme + "'.");
         return this;
     }
 }
\ No newline at end of file
@@ -0,0 +1,546 @@
+package lox;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/*
+ * The second tier of the tree-walker. Every plain function counts its calls
+ * and loop back-edges in 'hotness'; past THRESHOLD its body is translated to
+ * a static JVM method over unboxed doubles and loaded as a hidden class, so
+ * HotSpot can inline and optimize it like any other Java code.
+ *
+ * Only pure numeric functions are compiled: parameters and locals that hold
+ * numbers, arithmetic, comparisons, if/while/for, and calls to the function
+ * itself. Anything else makes the compile fail and the function stays in the
+ * tree-walker for good. Because compiled code has no side effects, any
+ * guard that fails at run time (an argument that is not a number, a division
+ * by zero, falling off the end and returning nil, recursing deeper than the
+ * Context's maxDepth) simply throws Deoptimize and the whole call is run
+ * again by the tree-walker, which produces the real result or error.
+ *
+ * The compiled method takes, ahead of the parameters, how many more calls
+ * may be in progress below it, and passes one less to each call it makes
+ * to itself.
+ */
+class Jit implements Expression.Visitor<Void>, Statement.Visitor<Void> {
+    static final int THRESHOLD = 1000;
+    private static final int MAX_DEOPTS = 4;
+    private static final String NAME = "lox/JitFunction";
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private final LoxFunction function;
+    private final ClassFile file = new ClassFile(NAME, "lox/JitCode");
+    private final Code code = new Code();
+    private final String descriptor;
+    // First JVM local of each Lox scope open in the function, innermost last.
+    private final List<Integer> scopes = new ArrayList<>();
+    // JVM local 0 holds the calls left; the Lox frame starts after it.
+    private int nextLocal = 1;
+    private boolean callsItself = false;
+    // The top of the body, after the prologue, where tail calls jump to.
+    private final Label start = new Label();
+
+    private Jit(LoxFunction function) {
+        this.function = function;
+        this.descriptor = "(I" + "D".repeat(function.parameters.size()) + ")D";
+    }
+
+    // Returns null when the call should be interpreted instead.
+    // 'calls' is how many more Lox calls may be in progress below this one.
+    static Double run(FunctionObject function, Environment frame, Environment globals, int calls) {
+        JitCode compiled = function.compiled;
+        if(compiled == null) {
+            if(++function.hotness < THRESHOLD) {
+                return null;
+            }
+            compiled = compile(function);
+            if(compiled == null) {
+                return null;
+            }
+        }
+        // Compiled self-calls assume the global it was declared as still
+        // holds the function.
+        if(compiled.self >= 0 && globals.get(0, compiled.self) != function) {
+            return null;
+        }
+        try {
+            return compiled.call(frame, calls);
+        } catch(Deoptimize deopt) {
+            if(++function.deopts == MAX_DEOPTS) {
+                function.compiled = null;
+                function.declaration = null;
+            }
+            return null;
+        }
+    }
+
+    private static JitCode compile(FunctionObject function) {
+        try {
+            Jit jit = new Jit(function.declaration);
+            byte[] bytes = jit.emit();
+            MethodHandles.Lookup hidden = LOOKUP.defineHiddenClass(bytes, true);
+            JitCode compiled = (JitCode) hidden.findConstructor(hidden.lookupClass(), MethodType.methodType(void.class)).invoke();
+            compiled.self = jit.callsItself ? function.declaration.slot : -1;
+            function.compiled = compiled;
+        } catch(Unsupported unsupported) {
+            function.declaration = null;
+        } catch(Throwable error) {
+            // Whatever the JVM refused to load is still run by the tree-walker.
+            function.declaration = null;
+        }
+        return function.compiled;
+    }
+
+    private byte[] emit() {
+        int arity = function.parameters.size();
+        beginScope(function.frameSize);
+        code.mark(start);
+        compile(function.funCode);
+        // Falling off the end returns nil, which is not a number.
+        deoptimize();
+        if(!code.fits()) {
+            throw new Unsupported();
+        }
+
+        // The verifier wants every local written before it is read, so the
+        // ones that are not parameters start out as 0.
+        Code run = new Code();
+        for(int local = 1 + 2 * arity; local < code.maxLocals; local += 2) {
+            run.op(Code.DCONST_0, 2);
+            run.local(Code.DSTORE, local, -2);
+        }
+        run.bytes.bytes(code.bytes);
+        run.maxStack = Math.max(run.maxStack, code.maxStack);
+        run.maxLocals = Math.max(Math.max(run.maxLocals, code.maxLocals), 1 + 2 * arity);
+        file.addMethod(ClassFile.ACC_STATIC, "run", descriptor, run);
+
+        Code call = new Code();
+        call.local(Code.ILOAD, 2, 1);
+        int environmentGet = file.methodRef("lox/Environment", "get", "(II)Ljava/lang/Object;");
+        int doubleClass = file.classRef("java/lang/Double");
+        int doubleValue = file.methodRef("java/lang/Double", "doubleValue", "()D");
+        for(int i = 0; i < arity; i++) {
+            Label isNumber = new Label();
+            call.local(Code.ALOAD, 1, 1);
+            call.pushInt(0);
+            call.pushInt(i);
+            call.op(Code.INVOKEVIRTUAL, environmentGet, -2);
+            call.op(Code.DUP, 1);
+            call.op(Code.INSTANCEOF, doubleClass, 0);
+            call.jump(Code.IFNE, isNumber, -1);
+            call.op(Code.GETSTATIC, file.fieldRef("lox/Deoptimize", "INSTANCE", "Llox/Deoptimize;"), 1);
+            call.op(Code.ATHROW, -1);
+            call.mark(isNumber);
+            call.op(Code.CHECKCAST, doubleClass, 0);
+            call.op(Code.INVOKEVIRTUAL, doubleValue, 1);
+        }
+        call.op(Code.INVOKESTATIC, file.methodRef(NAME, "run", descriptor), 1 - 2 * arity);
+        call.op(Code.DRETURN, -2);
+        file.addMethod(ClassFile.ACC_PUBLIC, "call", "(Llox/Environment;I)D", call);
+
+        Code init = new Code();
+        init.local(Code.ALOAD, 0, 1);
+        init.op(Code.INVOKESPECIAL, file.methodRef("lox/JitCode", "<init>", "()V"), -1);
+        init.op(Code.RETURN, 0);
+        file.addMethod(ClassFile.ACC_PUBLIC, "<init>", "()V", init);
+
+        return file.toByteArray();
+    }
+
+    private void compile(List<Statement> statements) {
+        for(Statement statement: statements) {
+            statement.accept(this);
+        }
+    }
+
+    private void beginScope(int frameSize) {
+        scopes.add(nextLocal);
+        nextLocal += 2 * frameSize;
+    }
+
+    private void endScope() {
+        nextLocal = scopes.remove(scopes.size() - 1);
+    }
+
+    private int local(int depth, int slot) {
+        int scope = scopes.size() - 1 - depth;
+        if(depth < 0 || scope < 0) {
+            throw new Unsupported();
+        }
+        return scopes.get(scope) + 2 * slot;
+    }
+
+    private void deoptimize() {
+        code.op(Code.GETSTATIC, file.fieldRef("lox/Deoptimize", "INSTANCE", "Llox/Deoptimize;"), 1);
+        code.op(Code.ATHROW, -1);
+    }
+
+    // Conditions are never materialized as values: this jumps to 'target'
+    // when 'condition' evaluates to 'when' and falls through otherwise.
+    private void branch(Expression condition, boolean when, Label target) {
+        if(condition instanceof Grouping) {
+            branch(((Grouping) condition).expr, when, target);
+        } else if(condition instanceof Literal && ((Literal) condition).value instanceof Boolean) {
+            if((Boolean) ((Literal) condition).value == when) {
+                code.jump(Code.GOTO, target, 0);
+            }
+        } else if(condition instanceof Unary && ((Unary) condition).operator.type == TokenType.BANG) {
+            branch(((Unary) condition).expr, !when, target);
+        } else if(condition instanceof Logical) {
+            Logical logical = (Logical) condition;
+            if((logical.operator.type == TokenType.AND) != when) {
+                branch(logical.left_expr, when, target);
+                branch(logical.right_expr, when, target);
+            } else {
+                Label skip = new Label();
+                branch(logical.left_expr, !when, skip);
+                branch(logical.right_expr, when, target);
+                code.mark(skip);
+            }
+        } else if(condition instanceof Binary) {
+            Binary binary = (Binary) condition;
+            switch(binary.operator.type) {
+                case LESS:
+                case LESS_EQUALS:
+                case GREATER:
+                case GREATER_EQUALS:
+                case DOUBLE_EQUALS:
+                case BANG_EQUALS:
+                    break;
+                default:
+                    throw new Unsupported();
+            }
+            binary.left_expr.accept(this);
+            binary.right_expr.accept(this);
+            // dcmpg and dcmpl differ only for NaN, which must make every
+            // ordered comparison false.
+            switch(binary.operator.type) {
+                case LESS:
+                    code.op(Code.DCMPG, -3);
+                    code.jump(when ? Code.IFLT : Code.IFGE, target, -1);
+                    break;
+                case LESS_EQUALS:
+                    code.op(Code.DCMPG, -3);
+                    code.jump(when ? Code.IFLE : Code.IFGT, target, -1);
+                    break;
+                case GREATER:
+                    code.op(Code.DCMPL, -3);
+                    code.jump(when ? Code.IFGT : Code.IFLE, target, -1);
+                    break;
+                case GREATER_EQUALS:
+                    code.op(Code.DCMPL, -3);
+                    code.jump(when ? Code.IFGE : Code.IFLT, target, -1);
+                    break;
+                default:
+                    // Double.compare agrees with Double.equals on NaN and -0.0.
+                    code.op(Code.INVOKESTATIC, file.methodRef("java/lang/Double", "compare", "(DD)I"), -3);
+                    boolean equal = (binary.operator.type == TokenType.DOUBLE_EQUALS) == when;
+                    code.jump(equal ? Code.IFEQ : Code.IFNE, target, -1);
+            }
+        } else {
+            throw new Unsupported();
+        }
+    }
+
+
+    @Override
+    public Void visitExpr(Expr statement) {
+        statement.expr.accept(this);
+        code.op(Code.POP2, -2);
+        return null;
+    }
+
+    @Override
+    public Void visitVar(Var statement) {
+        if(statement.value == null) {
+            throw new Unsupported();
+        }
+        statement.value.accept(this);
+        code.local(Code.DSTORE, local(0, statement.slot), -2);
+        return null;
+    }
+
+    @Override
+    public Void visitBlock(Block statement) {
+        if(statement.frameSize == 0) {
+            compile(statement.statements);
+            return null;
+        }
+        beginScope(statement.frameSize);
+        compile(statement.statements);
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitIf(If statement) {
+        Label end = new Label();
+        Label next = new Label();
+        branch(statement.ifClause, false, next);
+        compile(statement.ifCode);
+        code.jump(Code.GOTO, end, 0);
+        code.mark(next);
+        if(statement.elifClause != null) {
+            for(int i = 0; i < statement.elifClause.size(); i++) {
+                next = new Label();
+                branch(statement.elifClause.get(i), false, next);
+                compile(statement.elifCode.get(i));
+                code.jump(Code.GOTO, end, 0);
+                code.mark(next);
+            }
+        }
+        if(statement.elseCode != null) {
+            compile(statement.elseCode);
+        }
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitWhile(While statement) {
+        Label top = new Label();
+        Label end = new Label();
+        code.mark(top);
+        branch(statement.whileClause, false, end);
+        statement.whileCode.accept(this);
+        code.jump(Code.GOTO, top, 0);
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitFor(For statement) {
+        if(statement.frameSize > 0) {
+            beginScope(statement.frameSize);
+        }
+        if(statement.init != null) {
+            statement.init.accept(this);
+        }
+        Label top = new Label();
+        Label end = new Label();
+        code.mark(top);
+        if(statement.forClause != null) {
+            branch(statement.forClause, false, end);
+        }
+        statement.forCode.accept(this);
+        if(statement.forComp != null) {
+            statement.forComp.accept(this);
+            code.op(Code.POP2, -2);
+        }
+        code.jump(Code.GOTO, top, 0);
+        code.mark(end);
+        if(statement.frameSize > 0) {
+            endScope();
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitReturn(Return statement) {
+        if(statement.expr == null) {
+            throw new Unsupported();
+        }
+        // A tail call to itself stores the arguments over the parameters and
+        // jumps back to the top of the body.
+        if(statement.tail) {
+            Callable call = (Callable) statement.expr;
+            selfCall(call);
+            for(Expression argument: call.arguments) {
+                argument.accept(this);
+            }
+            for(int i = call.arguments.size() - 1; i >= 0; i--) {
+                code.local(Code.DSTORE, scopes.get(0) + 2 * i, -2);
+            }
+            code.jump(Code.GOTO, start, 0);
+            return null;
+        }
+        statement.expr.accept(this);
+        code.op(Code.DRETURN, -2);
+        return null;
+    }
+
+    @Override
+    public Void visitPrint(Print statement) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitLoxFunction(LoxFunction statement) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitLoxClass(LoxClass statement) {
+        throw new Unsupported();
+    }
+
+
+    @Override
+    public Void visitLiteral(Literal expr) {
+        if(!(expr.value instanceof Double)) {
+            throw new Unsupported();
+        }
+        double value = (Double) expr.value;
+        if(Double.doubleToRawLongBits(value) == 0) {
+            code.op(Code.DCONST_0, 2);
+        } else if(value == 1) {
+            code.op(Code.DCONST_1, 2);
+        } else {
+            code.op(Code.LDC2_W, file.doubleConstant(value), 2);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGrouping(Grouping expr) {
+        return expr.expr.accept(this);
+    }
+
+    @Override
+    public Void visitUnary(Unary expr) {
+        if(expr.operator.type != TokenType.MINUS) {
+            throw new Unsupported();
+        }
+        expr.expr.accept(this);
+        code.op(Code.DNEG, 0);
+        return null;
+    }
+
+    @Override
+    public Void visitBinary(Binary expr) {
+        int opcode;
+        switch(expr.operator.type) {
+            case PLUS: opcode = Code.DADD; break;
+            case MINUS: opcode = Code.DSUB; break;
+            case STAR: opcode = Code.DMUL; break;
+            case SLASH: opcode = Code.DDIV; break;
+            default: throw new Unsupported();
+        }
+        expr.left_expr.accept(this);
+        expr.right_expr.accept(this);
+        if(opcode == Code.DDIV) {
+            Label nonZero = new Label();
+            code.op(Code.DUP2, 2);
+            code.op(Code.DCONST_0, 2);
+            code.op(Code.DCMPL, -3);
+            code.jump(Code.IFNE, nonZero, -1);
+            deoptimize();
+            code.mark(nonZero);
+        }
+        code.op(opcode, -2);
+        return null;
+    }
+
+    @Override
+    public Void visitTernary(Ternary expr) {
+        Label otherwise = new Label();
+        Label end = new Label();
+        branch(expr.first_expr, false, otherwise);
+        expr.sec_expr.accept(this);
+        code.jump(Code.GOTO, end, 0);
+        code.adjust(-2);
+        code.mark(otherwise);
+        expr.third_expr.accept(this);
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitVariable(Variable expr) {
+        code.local(Code.DLOAD, local(expr.depth, expr.slot), 2);
+        return null;
+    }
+
+    @Override
+    public Void visitAssign(Assign expr) {
+        expr.value.accept(this);
+        code.op(Code.DUP2, 2);
+        code.local(Code.DSTORE, local(expr.depth, expr.slot), -2);
+        return null;
+    }
+
+    @Override
+    public Void visitCallable(Callable expr) {
+        selfCall(expr);
+        // Out of calls: the tree-walker runs it again and reports the overflow.
+        Label allowed = new Label();
+        code.local(Code.ILOAD, 0, 1);
+        code.jump(Code.IFNE, allowed, -1);
+        deoptimize();
+        code.mark(allowed);
+        code.local(Code.ILOAD, 0, 1);
+        code.pushInt(1);
+        code.op(Code.ISUB, -1);
+        for(Expression argument: expr.arguments) {
+            argument.accept(this);
+        }
+        code.op(Code.INVOKESTATIC, file.methodRef(NAME, "run", descriptor), 1 - 2 * expr.arguments.size());
+        return null;
+    }
+
+    // Only a global function calling itself by the name it was declared
+    // with; Jit.run checks the global still holds it.
+    private void selfCall(Callable expr) {
+        if(!(expr.name instanceof Variable) || expr.arguments.size() != function.parameters.size()) {
+            throw new Unsupported();
+        }
+        Variable callee = (Variable) expr.name;
+        if(callee.depth != Resolver.GLOBAL || callee.slot != function.slot) {
+            throw new Unsupported();
+        }
+        callsItself = true;
+    }
+
+    @Override
+    public Void visitLogical(Logical expr) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitGet(Get expr) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitSet(Set expr) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitThis(This expr) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitSuper(Super expr) {
+        throw new Unsupported();
+    }
+
+
+    private static class Unsupported extends RuntimeException {
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+}
+
+
+// Superclass of the hidden classes the Jit generates.
+abstract class JitCode {
+    // The global slot the function calls itself through, or -1.
+    int self = -1;
+
+    abstract double call(Environment frame, int calls);
+}
+
+
+class Deoptimize extends RuntimeException {
+    static final Deoptimize INSTANCE = new Deoptimize();
+
+    private Deoptimize() {
+        super(null, null, false, false);
+    }
+}
@@ -5,19 +5,86 @@ package lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.List;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 
 
 class Lox{
 
-    public static boolean hadError = false;
-    public static boolean hadRuntimeError = false;
+    private static boolean useVM = false;
+    private static boolean useJit = true;
+    private static int maxDepth = Context.DEFAULT_MAX_DEPTH;
+    private static String serve = null;
+    private static boolean useCache = true;
+
+    public static void main(String args[]) throws IOException, InterruptedException {
+        while(args.length > 0 && args[0].startsWith("--")) {
+            if(args[0].startsWith("--engine=")) {
+                String engine = args[0].substring("--engine=".length());
+                // 'jit' (the default) is the tree-walker with hot functions
+                // compiled to JVM bytecode; 'tree' never leaves the tree-walker.
+                if(engine.equals("vm")) {
+                    useVM = true;
+                } else if(engine.equals("tree")) {
+                    useJit = false;
+                } else if(!engine.equals("jit")) {
+                    usage();
+                }
+            } else if(args[0].startsWith("--max-depth=")) {
+                try {
+                    maxDepth = Integer.parseInt(args[0].substring("--max-depth=".length()));
+                } catch(NumberFormatException e) {
+                    usage();
+                }
+                if(maxDepth < 1) {
+                    usage();
+                }
+            } else if(args[0].equals("--no-cache")) {
+                useCache = false;
+            } else if(args[0].startsWith("--serve=")) {
+                // A loopback port or the path of a Unix-domain socket.
+                serve = args[0].substring("--serve=".length());
+                if(serve.isEmpty()) {
+                    usage();
+                }
+            } else {
+                usage();
+            }
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        if(serve != null) {
+            if(args.length > 0) {
+                usage();
+            }
+            new Server(useVM, useJit, maxDepth).serve(serve);
+            return;
+        }
 
-    public static void main(String args[]) throws IOException {
+        // On a thread with the stack for maxDepth calls; see Program.threads.
+        String[] script = args;
+        FutureTask<Void> session = new FutureTask<>(() -> {
+            start(script);
+            return null;
+        });
+        Program.threads(maxDepth).newThread(session).start();
+        try {
+            session.get();
+        } catch(ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if(cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+
+    private static void start(String args[]) throws IOException {
         if(args.length > 2){
             System.out.println("Usage: jlox [script]");
             System.exit(64);
@@ -37,28 +104,47 @@ class Lox{
     }
 
 
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens);
-        List<Statement> program = parser.parse(); 
-        Interpreter interpreter = new Interpreter();
-        Resolver resolver = new Resolver(interpreter);
+    private static void usage() {
+        System.out.println("Usage: jlox [--engine=jit|tree|vm] [--max-depth=N] [--no-cache] [--serve=PORT|PATH | script]");
+        System.exit(64);
+    }
 
-        if(!hadError) {
-            resolver.performResolution(program);
-            if(!hadError) {
-                try {
-                    interpreter.interpret(program);
-                } catch(InterpreterError error) {}
-            }        
-        }  
+    private static Context run(String source) {
+        return run(source, null);
+    }
+
+    // Every run gets a Context of its own, with the settings from the
+    // command line. A script from a file keeps its Program in a ProgramFile
+    // next to it, unless --no-cache was given.
+    private static Context run(CharSequence source, SourceFile script) {
+        Context context = new Context();
+        context.jit = useJit;
+        context.maxDepth = maxDepth;
+        Program program;
+        if(script != null && useCache) {
+            Path file = ProgramFile.pathFor(script.path);
+            String hash = script.hash();
+            program = ProgramFile.load(file, hash, context, useVM);
+            if(program == null && !context.hadError) {
+                program = Program.compile(source, context, useVM);
+                if(program != null) {
+                    ProgramFile.save(file, hash, program);
+                }
+            }
+        } else {
+            program = Program.compile(source, context, useVM);
+        }
+        if(program != null) {
+            program.run(context);
+        }
+        return context;
     }
 
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
-        if(hadError) System.exit(65);
+        SourceFile script = SourceFile.map(Paths.get(path));
+        Context context = run(script.text, script);
+        if(context.hadError) System.exit(65);
+        if(context.hadRuntimeError) System.exit(70);
     }
 
     private static void runPrompt() throws IOException {
@@ -70,38 +156,8 @@ class Lox{
             String line = reader.readLine();
             if(line.equals("")) break;
             run(line);
-            hadError = false;
-            hadRuntimeError = false;
         }
 
     }
 
-    public static void error(int line, String message) {
-        report(line, "", message, 65);
-    }
-
-    public static void runtimeError(int line, String message) {
-        report(line, "", message, 70); 
-    }
-
-
-    private static void report(int line, String where, String message, int errorIndex) {
-        System.err.println("line [" + line + "]: Error " + where + ": " + message);
-        
-        switch(errorIndex) {
-            case 65: 
-                hadError = true;
-                break;
-            case 70:
-                hadRuntimeError = true;
-                break;
-        }
-        
-    }
-
-
-
-
-
-
 };
\ No newline at end of file
@@ -0,0 +1,76 @@
+package lox;
+
+
+/*
+ * A long string made by '+'. Adding onto the newest string taken from a
+ * StringBuilder appends to that same builder rather than copying both
+ * sides, so 's = s + piece;' in a loop costs linear time instead of
+ * quadratic. Each LoxString only owns a prefix of its builder, which later
+ * appends never touch, and turns it into a String the first time it is
+ * printed or compared. Short results stay plain Strings.
+ *
+ * Lox strings are therefore either a String or a LoxString: test with
+ * isString and compare flattened values.
+ */
+final class LoxString {
+    private static final int MIN_LENGTH = 64;
+
+    private final StringBuilder builder;
+    private final int length;
+    private String value;
+
+    private LoxString(StringBuilder builder) {
+        this.builder = builder;
+        this.length = builder.length();
+    }
+
+    static boolean isString(Object value) {
+        return value instanceof String || value instanceof LoxString;
+    }
+
+    static Object flatten(Object value) {
+        return (value instanceof LoxString) ? value.toString() : value;
+    }
+
+    // Both operands must be strings.
+    static Object concat(Object left, Object right) {
+        int length = length(left) + length(right);
+        if(length < MIN_LENGTH) {
+            return (String) left + (String) right;
+        }
+        StringBuilder builder;
+        if(left instanceof LoxString && ((LoxString) left).isNewest()) {
+            builder = ((LoxString) left).builder;
+        } else {
+            builder = new StringBuilder(2 * length);
+            append(builder, left);
+        }
+        append(builder, right);
+        return new LoxString(builder);
+    }
+
+    private boolean isNewest() {
+        return builder.length() == length;
+    }
+
+    private static int length(Object string) {
+        return (string instanceof LoxString) ? ((LoxString) string).length : ((String) string).length();
+    }
+
+    private static void append(StringBuilder builder, Object string) {
+        if(string instanceof LoxString && ((LoxString) string).builder != builder) {
+            LoxString rope = (LoxString) string;
+            builder.append(rope.builder, 0, rope.length);
+        } else {
+            builder.append(string.toString());
+        }
+    }
+
+    @Override
+    public String toString() {
+        if(value == null) {
+            value = builder.substring(0, length);
+        }
+        return value;
+    }
+}
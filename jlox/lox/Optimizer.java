@@ -0,0 +1,411 @@
+package lox;
+
+import java.util.List;
+import java.util.ArrayList;
+
+
+/*
+ * Runs after the Resolver and rewrites the program in place: operators over
+ * literals become literals, and if/elif branches, while loops and for loops
+ * whose condition is a constant are dropped or unwrapped. Anything that
+ * would fail at run time, like dividing by zero or adding a string to a
+ * number, is left alone so the error is still reported where it happens.
+ *
+ * The AST's children are final, so a node whose children changed is
+ * replaced by a copy that keeps what the Resolver wrote into it. Each
+ * visit returns the node to use in place of the one visited, or null for a
+ * statement that can be removed.
+ */
+class Optimizer implements Expression.Visitor<Expression>, Statement.Visitor<Statement> {
+
+    void optimize(List<Statement> statements) {
+        List<Statement> result = new ArrayList<>(statements.size());
+        for(Statement statement: statements) {
+            Statement optimized = statement.accept(this);
+            if(optimized == null) {
+                continue;
+            }
+            // A branch that was always taken comes back as a Block without
+            // a frame, and its statements take the If's place.
+            if(optimized != statement && optimized instanceof Block && ((Block) optimized).frameSize == 0) {
+                result.addAll(((Block) optimized).statements);
+            } else {
+                result.add(optimized);
+            }
+        }
+        statements.clear();
+        statements.addAll(result);
+    }
+
+    private Expression fold(Expression expr) {
+        return (expr == null) ? null : expr.accept(this);
+    }
+
+    private static boolean isConstant(Expression expr) {
+        return expr instanceof Literal;
+    }
+
+    private static boolean isTruth(Expression expr) {
+        Object value = ((Literal) expr).value;
+        if(value == null) {
+            return false;
+        }
+        if(value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        return true;
+    }
+
+    private static boolean isEqual(Object v, Object u) {
+        if(v == null && u == null) {
+            return true;
+        } else if (v == null || u == null) {
+            return false;
+        } else {
+            return v.equals(u);
+        }
+    }
+
+
+    @Override
+    public Statement visitPrint(Print statement) {
+        Expression expr = fold(statement.expr);
+        return (expr == statement.expr) ? statement : new Print(expr);
+    }
+
+    @Override
+    public Statement visitReturn(Return statement) {
+        Expression expr = fold(statement.expr);
+        if(expr == statement.expr) {
+            return statement;
+        }
+        Return ret = new Return(statement.name, expr);
+        ret.tail = statement.tail && expr instanceof Callable;
+        return ret;
+    }
+
+    @Override
+    public Statement visitExpr(Expr statement) {
+        Expression expr = fold(statement.expr);
+        if(isConstant(expr)) {
+            return null;
+        }
+        return (expr == statement.expr) ? statement : new Expr(expr);
+    }
+
+    @Override
+    public Statement visitVar(Var statement) {
+        Expression value = fold(statement.value);
+        if(value == statement.value) {
+            return statement;
+        }
+        Var var = new Var(statement.name, value);
+        var.slot = statement.slot;
+        var.boxed = statement.boxed;
+        return var;
+    }
+
+    @Override
+    public Statement visitBlock(Block statement) {
+        optimize(statement.statements);
+        return statement;
+    }
+
+    @Override
+    public Statement visitIf(If statement) {
+        List<Expression> clauses = new ArrayList<>();
+        List<List<Statement>> codes = new ArrayList<>();
+        clauses.add(statement.ifClause);
+        codes.add(statement.ifCode);
+        if(statement.elifClause != null) {
+            clauses.addAll(statement.elifClause);
+            codes.addAll(statement.elifCode);
+        }
+
+        List<Expression> keptClauses = new ArrayList<>();
+        List<List<Statement>> keptCodes = new ArrayList<>();
+        List<Statement> elseCode = statement.elseCode;
+        boolean changed = false;
+        for(int i = 0; i < clauses.size(); i++) {
+            Expression clause = fold(clauses.get(i));
+            List<Statement> code = codes.get(i);
+            optimize(code);
+            changed |= (clause != clauses.get(i));
+            if(isConstant(clause)) {
+                changed = true;
+                if(isTruth(clause)) {
+                    elseCode = code;
+                    break;
+                }
+                continue;
+            }
+            keptClauses.add(clause);
+            keptCodes.add(code);
+        }
+        if(elseCode != null) {
+            optimize(elseCode);
+        }
+
+        if(!changed) {
+            return statement;
+        }
+        // A branch's own statements never declare anything: the parser turns
+        // away 'var', 'fun' and 'class' there, so a declaration can only come
+        // in a nested block, which the Resolver gives a frame of its own. A
+        // branch that never runs takes only such frames with it, and the one
+        // that always runs can replace the If as a block without a frame,
+        // since the If had none either.
+        if(keptClauses.isEmpty()) {
+            if(elseCode == null || elseCode.isEmpty()) {
+                return null;
+            }
+            Block block = new Block(elseCode);
+            block.frameSize = 0;
+            return block;
+        }
+        return new If(keptClauses.get(0), keptCodes.get(0),
+                      keptClauses.subList(1, keptClauses.size()), keptCodes.subList(1, keptCodes.size()), elseCode);
+    }
+
+    @Override
+    public Statement visitWhile(While statement) {
+        Expression clause = fold(statement.whileClause);
+        if(isConstant(clause) && !isTruth(clause)) {
+            return null;
+        }
+        statement.whileCode.accept(this);
+        return (clause == statement.whileClause) ? statement : new While(clause, statement.whileCode);
+    }
+
+    @Override
+    public Statement visitFor(For statement) {
+        Var init = (statement.init == null) ? null : (Var) statement.init.accept(this);
+        Expression clause = fold(statement.forClause);
+        if(isConstant(clause) && !isTruth(clause)) {
+            if(init == null) {
+                return null;
+            }
+            // Only the initializer ever runs, in the scope the loop had.
+            List<Statement> statements = new ArrayList<>();
+            statements.add(init);
+            Block block = new Block(statements);
+            block.frameSize = statement.frameSize;
+            return block;
+        }
+        Expression comp = fold(statement.forComp);
+        if(isConstant(comp)) {
+            comp = null;
+        }
+        statement.forCode.accept(this);
+        if(init == statement.init && clause == statement.forClause && comp == statement.forComp) {
+            return statement;
+        }
+        For loop = new For(init, clause, comp, statement.forCode);
+        loop.frameSize = statement.frameSize;
+        return loop;
+    }
+
+    @Override
+    public Statement visitLoxFunction(LoxFunction statement) {
+        optimize(statement.funCode);
+        return statement;
+    }
+
+    @Override
+    public Statement visitLoxClass(LoxClass statement) {
+        for(LoxFunction method: statement.methods) {
+            optimize(method.funCode);
+        }
+        return statement;
+    }
+
+
+    @Override
+    public Expression visitAssign(Assign expr) {
+        Expression value = fold(expr.value);
+        if(value == expr.value) {
+            return expr;
+        }
+        Assign assign = new Assign(expr.name, value);
+        assign.depth = expr.depth;
+        assign.slot = expr.slot;
+        assign.boxed = expr.boxed;
+        return assign;
+    }
+
+    @Override
+    public Expression visitGrouping(Grouping expr) {
+        Expression inner = fold(expr.expr);
+        if(isConstant(inner)) {
+            return inner;
+        }
+        return (inner == expr.expr) ? expr : new Grouping(inner);
+    }
+
+    @Override
+    public Expression visitLogical(Logical expr) {
+        Expression left = fold(expr.left_expr);
+        Expression right = fold(expr.right_expr);
+        if(isConstant(left)) {
+            boolean or = expr.operator.type == TokenType.OR;
+            if(isTruth(left) == or) {
+                return new Literal(or);
+            }
+            if(isConstant(right)) {
+                return new Literal(isTruth(right));
+            }
+        }
+        if(left == expr.left_expr && right == expr.right_expr) {
+            return expr;
+        }
+        return new Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expression visitUnary(Unary expr) {
+        Expression operand = fold(expr.expr);
+        if(isConstant(operand)) {
+            Object value = ((Literal) operand).value;
+            if(expr.operator.type == TokenType.BANG) {
+                return new Literal(!isTruth(operand));
+            }
+            if(value instanceof Double) {
+                return new Literal(-(Double) value);
+            }
+        }
+        return (operand == expr.expr) ? expr : new Unary(expr.operator, operand);
+    }
+
+    @Override
+    public Expression visitBinary(Binary expr) {
+        Expression left = fold(expr.left_expr);
+        Expression right = fold(expr.right_expr);
+        if(expr.operator.type == TokenType.COMMA && isConstant(left)) {
+            return right;
+        }
+        if(isConstant(left) && isConstant(right)) {
+            Object value = evaluate(expr.operator.type, ((Literal) left).value, ((Literal) right).value);
+            if(value != null) {
+                return new Literal(value);
+            }
+        }
+        if(left == expr.left_expr && right == expr.right_expr) {
+            return expr;
+        }
+        Binary binary = new Binary(left, expr.operator, right);
+        binary.numeric = expr.numeric
+            || (expr.operator.type == TokenType.PLUS && (Interpreter.isNumeric(left) || Interpreter.isNumeric(right)));
+        return binary;
+    }
+
+    // The value of a constant operation, or null if it has to be left to
+    // run time (nil is never the result of a binary operator).
+    private static Object evaluate(TokenType operator, Object left, Object right) {
+        switch(operator) {
+            case DOUBLE_EQUALS:
+                return isEqual(left, right);
+            case BANG_EQUALS:
+                return !isEqual(left, right);
+            case PLUS:
+                if(left instanceof String && right instanceof String) {
+                    return (String) left + (String) right;
+                }
+                break;
+        }
+        if(!(left instanceof Double) || !(right instanceof Double)) {
+            return null;
+        }
+        double l = (Double) left;
+        double r = (Double) right;
+        switch(operator) {
+            case PLUS:
+                return l + r;
+            case MINUS:
+                return l - r;
+            case STAR:
+                return l * r;
+            case SLASH:
+                return (r == 0) ? null : (Object) (l / r);
+            case GREATER:
+                return l > r;
+            case GREATER_EQUALS:
+                return l >= r;
+            case LESS:
+                return l < r;
+            case LESS_EQUALS:
+                return l <= r;
+        }
+        return null;
+    }
+
+    @Override
+    public Expression visitTernary(Ternary expr) {
+        Expression first = fold(expr.first_expr);
+        Expression second = fold(expr.sec_expr);
+        Expression third = fold(expr.third_expr);
+        if(isConstant(first)) {
+            return isTruth(first) ? second : third;
+        }
+        if(first == expr.first_expr && second == expr.sec_expr && third == expr.third_expr) {
+            return expr;
+        }
+        return new Ternary(first, expr.operator1_2, second, expr.operator2_3, third);
+    }
+
+    @Override
+    public Expression visitLiteral(Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expression visitVariable(Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Expression visitThis(This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expression visitSuper(Super expr) {
+        return expr;
+    }
+
+    @Override
+    public Expression visitGet(Get expr) {
+        Expression object = fold(expr.variable);
+        if(object == expr.variable) {
+            return expr;
+        }
+        Get get = new Get(object, expr.name);
+        get.site = expr.site;
+        return get;
+    }
+
+    @Override
+    public Expression visitSet(Set expr) {
+        Expression object = fold(expr.variable);
+        Expression value = fold(expr.value);
+        if(object == expr.variable && value == expr.value) {
+            return expr;
+        }
+        Set set = new Set(object, expr.name, value);
+        set.site = expr.site;
+        return set;
+    }
+
+    @Override
+    public Expression visitCallable(Callable expr) {
+        for(int i = 0; i < expr.arguments.size(); i++) {
+            expr.arguments.set(i, fold(expr.arguments.get(i)));
+        }
+        Expression callee = fold(expr.name);
+        if(callee == expr.name) {
+            return expr;
+        }
+        Callable call = new Callable(callee, expr.paren, expr.arguments);
+        call.site = expr.site;
+        return call;
+    }
+}
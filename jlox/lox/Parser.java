@@ -5,9 +5,11 @@ import java.util.ArrayList;
 public class Parser {
     private int current = 0;
     private List<Token> tokens;
+    private final Context context;
 
-    Parser(List<Token> tokens) {
+    Parser(List<Token> tokens, Context context) {
         this.tokens = tokens;
+        this.context = context;
     }
 
     public List<Statement> parse() {
@@ -569,7 +571,7 @@ public class Parser {
 
 
     private ParseError error(Token token, String message) {
-        Lox.error(token.line, message); 
+        context.error(token.line, message); 
         synchronize();
         return new ParseError();
     }
@@ -0,0 +1,135 @@
+package lox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+
+
+/*
+ * A script that has been through the front end: scanned, parsed, resolved
+ * and optimized, and compiled as well when it is for the VM. One Program can
+ * be run any number of times and from any number of threads at once, as long
+ * as each run has a Context of its own.
+ *
+ * Every Interpreter keeps its inline caches to itself, but the one thing a
+ * run does change in the AST is the Specialization of each Binary, which all
+ * runs share without synchronization. Two runs can race on it, so that a
+ * Binary one run has made GENERIC is set back to DOUBLE or STRING by another
+ * that read it earlier. That costs only speed: every specialized path checks
+ * its operands' types and falls back to GENERIC when they do not match, so
+ * whichever state wins, each run gets the same results as it would alone.
+ */
+final class Program {
+    final List<Statement> statements;
+    // The compiled script if the Program is for the VM, otherwise null.
+    final VMFunction script;
+    // Global slots the Resolver handed out.
+    final int globals;
+
+    private Program(List<Statement> statements, VMFunction script, int globals) {
+        this.statements = statements;
+        this.script = script;
+        this.globals = globals;
+    }
+
+    // Returns null if the source had an error, after reporting it to the context.
+    static Program compile(CharSequence source, Context context, boolean vm) {
+        List<Token> tokens = new Scanner(source, context).scanTokens();
+        List<Statement> statements = new Parser(tokens, context).parse();
+        if(context.hadError) {
+            return null;
+        }
+        Resolver resolver = new Resolver(new Interpreter(context));
+        resolver.performResolution(statements);
+        if(context.hadError) {
+            return null;
+        }
+        new Optimizer().optimize(statements);
+        return load(statements, resolver.globalCount(), context, vm);
+    }
+
+    // From statements that were resolved and optimized earlier, like the ones
+    // a ProgramFile holds.
+    static Program load(List<Statement> statements, int globals, Context context, boolean vm) {
+        VMFunction script = null;
+        if(vm) {
+            script = new Compiler(context).compile(statements);
+            if(context.hadError) {
+                return null;
+            }
+        }
+        return new Program(statements, script, globals);
+    }
+
+    // Stack a tree-walker call takes, through all the visits it nests, with
+    // room to spare for a body nested more deeply than 'return 1 + f(n - 1)'.
+    private static final long STACK_PER_CALL = 2048;
+
+    // Makes the threads Programs are run on. Every Lox call the tree-walker
+    // makes nests Java calls, so these have stacks with room for maxDepth of
+    // them, not the JVM's default, which has room for a few hundred. The
+    // size is worked out once, and a stack is only reserved, not used, until
+    // a script recurses into it; if the machine will not reserve that much,
+    // the threads get half as much, and so on down to the default.
+    static ThreadFactory threads(int maxDepth) {
+        long stack = Math.max((long) maxDepth * STACK_PER_CALL, 1 << 20);
+        while(stack > (1 << 20) && !canStart(stack)) {
+            stack /= 2;
+        }
+        long size = stack;
+        return task -> new Thread(null, task, "lox", size);
+    }
+
+    private static boolean canStart(long stack) {
+        try {
+            Thread probe = new Thread(null, () -> {}, "lox", stack);
+            probe.start();
+            probe.join();
+            return true;
+        } catch(OutOfMemoryError e) {
+            return false;
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return true;
+        }
+    }
+
+    // A runtime error is reported to the context and ends the run. The
+    // tree-walker goes as deep as the calling thread's stack allows, so
+    // callers run Programs on threads from threads().
+    void run(Context context) {
+        try {
+            if(script != null) {
+                new VM(context, globals).interpret(script);
+            } else {
+                Interpreter interpreter = new Interpreter(context);
+                interpreter.reserveGlobals(globals);
+                interpreter.interpret(statements);
+            }
+        } catch(InterpreterError error) {}
+    }
+
+    // Identifies a source by its content, for caching the Programs made from it.
+    static String hash(String source) {
+        return hash(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    static String hash(ByteBuffer source) {
+        byte[] digest;
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(source);
+            digest = sha.digest();
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder hex = new StringBuilder(2 * digest.length);
+        for(byte b: digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
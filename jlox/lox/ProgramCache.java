@@ -0,0 +1,42 @@
+package lox;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/*
+ * Programs by the hash of the source they were made from, for anything
+ * that runs the same scripts over and over in one JVM. Sources with errors
+ * are not kept. Once full, an arbitrary Program makes room for each new one.
+ */
+final class ProgramCache {
+    private static final int CAPACITY = 4096;
+
+    private final boolean vm;
+    private final Map<String, Program> programs = new ConcurrentHashMap<>();
+
+    ProgramCache(boolean vm) {
+        this.vm = vm;
+    }
+
+    Program find(String hash) {
+        return programs.get(hash);
+    }
+
+    // Returns null if the source had an error, after reporting it to the context.
+    Program compile(String hash, String source, Context context) {
+        Program program = Program.compile(source, context, vm);
+        if(program != null) {
+            if(programs.size() >= CAPACITY) {
+                Iterator<String> hashes = programs.keySet().iterator();
+                if(hashes.hasNext()) {
+                    hashes.next();
+                    hashes.remove();
+                }
+            }
+            programs.put(hash, program);
+        }
+        return program;
+    }
+}
@@ -0,0 +1,729 @@
+package lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/*
+ * Keeps a script's Program next to it, as NAME.loxc, so that later runs
+ * load it instead of going through the front end again. The file holds the
+ * optimized AST together with everything the Resolver wrote into it, and
+ * is the same whichever engine runs it; the VM compiles it after loading.
+ *
+ * A header with a version and the hash of the source comes first, then a
+ * pool of every string the AST uses, which nodes refer to by index, then
+ * the statements. A file whose version or hash does not match, or that
+ * cannot be read, is ignored and replaced.
+ */
+final class ProgramFile {
+    private static final int MAGIC = 0x4c4f5843;
+    // Bump whenever the AST or what the Resolver writes into it changes.
+    private static final int VERSION = 1;
+
+    private static final int NULL = 0;
+    private static final int ASSIGN = 1, GROUPING = 2, LOGICAL = 3, UNARY = 4, BINARY = 5, TERNARY = 6, LITERAL = 7,
+        VARIABLE = 8, THIS = 9, GET = 10, SET = 11, CALLABLE = 12, SUPER = 13;
+    private static final int PRINT = 14, RETURN = 15, EXPR = 16, VAR = 17, BLOCK = 18, IF = 19, WHILE = 20, FOR = 21,
+        FUNCTION = 22, CLASS = 23;
+    private static final int DOUBLE = 1, STRING = 2, TRUE = 3, FALSE = 4;
+
+    static Path pathFor(Path script) {
+        return script.resolveSibling(script.getFileName().toString().replaceFirst("\\.lox$", "") + ".loxc");
+    }
+
+    // Returns null if there is no usable file for this source.
+    static Program load(Path file, String hash, Context context, boolean vm) {
+        Reader reader;
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            reader = new Reader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch(IOException e) {
+            return null;
+        }
+        try {
+            if(!reader.header(hash)) {
+                return null;
+            }
+            int globals = reader.integer();
+            reader.pool();
+            List<Statement> statements = reader.statements();
+            return Program.load(statements, globals, context, vm);
+        } catch(RuntimeException e) {
+            // Truncated or corrupt: as good as no file at all.
+            return null;
+        }
+    }
+
+    // Failing to save only costs the next run its shortcut, so it is not an error.
+    static void save(Path file, String hash, Program program) {
+        Writer writer = new Writer();
+        writer.statements(program.statements);
+        // A temporary file of its own, so that runs of the same script saving
+        // at once never move each other's half-written files into place.
+        Path temporary = null;
+        try {
+            temporary = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+            Files.write(temporary, writer.toByteArray(hash, program.globals));
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e) {
+            try {
+                if(temporary != null) {
+                    Files.deleteIfExists(temporary);
+                }
+            } catch(IOException ignored) {}
+        }
+    }
+
+
+    private static class Writer implements Expression.Visitor<Void>, Statement.Visitor<Void> {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final Map<String, Integer> strings = new HashMap<>();
+        private final List<String> pool = new ArrayList<>();
+        // Lines are written as the difference from the previous token's.
+        private int line = 0;
+
+        byte[] toByteArray(String hash, int globals) {
+            ByteArrayOutputStream file = new ByteArrayOutputStream(out.size() + 64 * pool.size());
+            writeInt(file, MAGIC);
+            writeInt(file, VERSION);
+            file.writeBytes(hash.getBytes(StandardCharsets.US_ASCII));
+            writeVarint(file, globals);
+            writeVarint(file, pool.size());
+            for(String string: pool) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                writeVarint(file, bytes.length);
+                file.writeBytes(bytes);
+            }
+            file.writeBytes(out.toByteArray());
+            return file.toByteArray();
+        }
+
+        private static void writeInt(ByteArrayOutputStream stream, int value) {
+            stream.write(value >>> 24);
+            stream.write(value >>> 16);
+            stream.write(value >>> 8);
+            stream.write(value);
+        }
+
+        // Seven bits a byte, zigzagged so that the -1 and -2 of a global or an
+        // upvalue take one byte like any other small number.
+        private static void writeVarint(ByteArrayOutputStream stream, int value) {
+            int bits = (value << 1) ^ (value >> 31);
+            while((bits & ~0x7f) != 0) {
+                stream.write((bits & 0x7f) | 0x80);
+                bits >>>= 7;
+            }
+            stream.write(bits);
+        }
+
+        private void tag(int tag) {
+            out.write(tag);
+        }
+
+        private void integer(int value) {
+            writeVarint(out, value);
+        }
+
+        private void bool(boolean value) {
+            out.write(value ? 1 : 0);
+        }
+
+        private void string(String value) {
+            Integer index = strings.get(value);
+            if(index == null) {
+                index = pool.size();
+                strings.put(value, index);
+                pool.add(value);
+            }
+            integer(index);
+        }
+
+        private void value(Object value) {
+            if(value == null) {
+                tag(NULL);
+            } else if(value instanceof Double) {
+                tag(DOUBLE);
+                long bits = Double.doubleToRawLongBits((Double) value);
+                writeInt(out, (int) (bits >>> 32));
+                writeInt(out, (int) bits);
+            } else if(value instanceof Boolean) {
+                tag((Boolean) value ? TRUE : FALSE);
+            } else {
+                tag(STRING);
+                string(value.toString());
+            }
+        }
+
+        private void token(Token token) {
+            if(token == null) {
+                tag(NULL);
+                return;
+            }
+            tag(token.type.ordinal() + 1);
+            string(token.lexeme);
+            value(token.literal);
+            integer(token.line - line);
+            line = token.line;
+        }
+
+        private void tokens(List<Token> tokens) {
+            integer(tokens.size());
+            for(Token token: tokens) {
+                token(token);
+            }
+        }
+
+        private void ints(int[] values) {
+            if(values == null) {
+                integer(-1);
+                return;
+            }
+            integer(values.length);
+            for(int value: values) {
+                integer(value);
+            }
+        }
+
+        private void expression(Expression expr) {
+            if(expr == null) {
+                tag(NULL);
+            } else {
+                expr.accept(this);
+            }
+        }
+
+        private void expressions(List<Expression> exprs) {
+            if(exprs == null) {
+                integer(-1);
+                return;
+            }
+            integer(exprs.size());
+            for(Expression expr: exprs) {
+                expression(expr);
+            }
+        }
+
+        private void statement(Statement statement) {
+            if(statement == null) {
+                tag(NULL);
+            } else {
+                statement.accept(this);
+            }
+        }
+
+        void statements(List<? extends Statement> statements) {
+            if(statements == null) {
+                integer(-1);
+                return;
+            }
+            integer(statements.size());
+            for(Statement statement: statements) {
+                statement(statement);
+            }
+        }
+
+        private void variable(int depth, int slot, boolean boxed) {
+            integer(depth);
+            integer(slot);
+            bool(boxed);
+        }
+
+
+        @Override
+        public Void visitAssign(Assign expr) {
+            tag(ASSIGN);
+            token(expr.name);
+            expression(expr.value);
+            variable(expr.depth, expr.slot, expr.boxed);
+            return null;
+        }
+
+        @Override
+        public Void visitGrouping(Grouping expr) {
+            tag(GROUPING);
+            expression(expr.expr);
+            return null;
+        }
+
+        @Override
+        public Void visitLogical(Logical expr) {
+            tag(LOGICAL);
+            expression(expr.left_expr);
+            token(expr.operator);
+            expression(expr.right_expr);
+            return null;
+        }
+
+        @Override
+        public Void visitUnary(Unary expr) {
+            tag(UNARY);
+            token(expr.operator);
+            expression(expr.expr);
+            return null;
+        }
+
+        @Override
+        public Void visitBinary(Binary expr) {
+            tag(BINARY);
+            expression(expr.left_expr);
+            token(expr.operator);
+            expression(expr.right_expr);
+            bool(expr.numeric);
+            return null;
+        }
+
+        @Override
+        public Void visitTernary(Ternary expr) {
+            tag(TERNARY);
+            expression(expr.first_expr);
+            token(expr.operator1_2);
+            expression(expr.sec_expr);
+            token(expr.operator2_3);
+            expression(expr.third_expr);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteral(Literal expr) {
+            tag(LITERAL);
+            value(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitVariable(Variable expr) {
+            tag(VARIABLE);
+            token(expr.name);
+            variable(expr.depth, expr.slot, expr.boxed);
+            return null;
+        }
+
+        @Override
+        public Void visitThis(This expr) {
+            tag(THIS);
+            token(expr.dis);
+            variable(expr.depth, expr.slot, expr.boxed);
+            return null;
+        }
+
+        @Override
+        public Void visitGet(Get expr) {
+            tag(GET);
+            expression(expr.variable);
+            token(expr.name);
+            integer(expr.site);
+            return null;
+        }
+
+        @Override
+        public Void visitSet(Set expr) {
+            tag(SET);
+            expression(expr.variable);
+            token(expr.name);
+            expression(expr.value);
+            integer(expr.site);
+            return null;
+        }
+
+        @Override
+        public Void visitCallable(Callable expr) {
+            tag(CALLABLE);
+            expression(expr.name);
+            token(expr.paren);
+            expressions(expr.arguments);
+            integer(expr.site);
+            return null;
+        }
+
+        @Override
+        public Void visitSuper(Super expr) {
+            tag(SUPER);
+            token(expr.ssup);
+            token(expr.name);
+            variable(expr.depth, expr.slot, expr.boxed);
+            expression(expr.receiver);
+            integer(expr.site);
+            return null;
+        }
+
+
+        @Override
+        public Void visitPrint(Print statement) {
+            tag(PRINT);
+            expression(statement.expr);
+            return null;
+        }
+
+        @Override
+        public Void visitReturn(Return statement) {
+            tag(RETURN);
+            token(statement.name);
+            expression(statement.expr);
+            bool(statement.tail);
+            return null;
+        }
+
+        @Override
+        public Void visitExpr(Expr statement) {
+            tag(EXPR);
+            expression(statement.expr);
+            return null;
+        }
+
+        @Override
+        public Void visitVar(Var statement) {
+            tag(VAR);
+            token(statement.name);
+            expression(statement.value);
+            integer(statement.slot);
+            bool(statement.boxed);
+            return null;
+        }
+
+        @Override
+        public Void visitBlock(Block statement) {
+            tag(BLOCK);
+            statements(statement.statements);
+            integer(statement.frameSize);
+            return null;
+        }
+
+        @Override
+        public Void visitIf(If statement) {
+            tag(IF);
+            expression(statement.ifClause);
+            statements(statement.ifCode);
+            expressions(statement.elifClause);
+            if(statement.elifCode == null) {
+                integer(-1);
+            } else {
+                integer(statement.elifCode.size());
+                for(List<Statement> code: statement.elifCode) {
+                    statements(code);
+                }
+            }
+            statements(statement.elseCode);
+            return null;
+        }
+
+        @Override
+        public Void visitWhile(While statement) {
+            tag(WHILE);
+            expression(statement.whileClause);
+            statement(statement.whileCode);
+            return null;
+        }
+
+        @Override
+        public Void visitFor(For statement) {
+            tag(FOR);
+            statement(statement.init);
+            expression(statement.forClause);
+            expression(statement.forComp);
+            statement(statement.forCode);
+            integer(statement.frameSize);
+            return null;
+        }
+
+        @Override
+        public Void visitLoxFunction(LoxFunction statement) {
+            tag(FUNCTION);
+            token(statement.name);
+            tokens(statement.parameters);
+            statements(statement.funCode);
+            tag(statement.type.ordinal());
+            integer(statement.slot);
+            integer(statement.frameSize);
+            bool(statement.boxed);
+            ints(statement.boxedSlots);
+            ints(statement.upvalueDepths);
+            ints(statement.upvalueSlots);
+            return null;
+        }
+
+        @Override
+        public Void visitLoxClass(LoxClass statement) {
+            tag(CLASS);
+            token(statement.name);
+            expression(statement.parentClass);
+            statements(statement.methods);
+            integer(statement.slot);
+            bool(statement.boxed);
+            return null;
+        }
+    }
+
+
+    private static class Reader {
+        private static final TokenType[] TOKEN_TYPES = TokenType.values();
+        private static final FunctionType[] FUNCTION_TYPES = FunctionType.values();
+
+        private final ByteBuffer buffer;
+        private String[] pool;
+        private int line = 0;
+
+        Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        boolean header(String hash) {
+            if(buffer.remaining() < 8 + hash.length() || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return false;
+            }
+            byte[] stored = new byte[hash.length()];
+            buffer.get(stored);
+            return hash.equals(new String(stored, StandardCharsets.US_ASCII));
+        }
+
+        void pool() {
+            pool = new String[integer()];
+            for(int i = 0; i < pool.length; i++) {
+                byte[] bytes = new byte[integer()];
+                buffer.get(bytes);
+                pool[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+        }
+
+        int integer() {
+            int bits = 0;
+            for(int shift = 0; ; shift += 7) {
+                byte b = buffer.get();
+                bits |= (b & 0x7f) << shift;
+                if(b >= 0) {
+                    break;
+                }
+            }
+            return (bits >>> 1) ^ -(bits & 1);
+        }
+
+        private int tag() {
+            return buffer.get() & 0xff;
+        }
+
+        private boolean bool() {
+            return buffer.get() != 0;
+        }
+
+        private String string() {
+            return pool[integer()];
+        }
+
+        private Object value() {
+            switch(tag()) {
+                case NULL:
+                    return null;
+                case DOUBLE:
+                    return buffer.getDouble();
+                case STRING:
+                    return string();
+                case TRUE:
+                    return true;
+                case FALSE:
+                    return false;
+            }
+            throw new IllegalStateException("Bad literal.");
+        }
+
+        private Token token() {
+            int type = tag();
+            if(type == NULL) {
+                return null;
+            }
+            String lexeme = string();
+            Object literal = value();
+            line += integer();
+            return new Token(TOKEN_TYPES[type - 1], lexeme, literal, line);
+        }
+
+        private List<Token> tokens() {
+            int size = integer();
+            List<Token> tokens = new ArrayList<>(size);
+            for(int i = 0; i < size; i++) {
+                tokens.add(token());
+            }
+            return tokens;
+        }
+
+        private int[] ints() {
+            int size = integer();
+            if(size < 0) {
+                return null;
+            }
+            int[] values = new int[size];
+            for(int i = 0; i < size; i++) {
+                values[i] = integer();
+            }
+            return values;
+        }
+
+        private List<Expression> expressions() {
+            int size = integer();
+            if(size < 0) {
+                return null;
+            }
+            List<Expression> exprs = new ArrayList<>(size);
+            for(int i = 0; i < size; i++) {
+                exprs.add(expression());
+            }
+            return exprs;
+        }
+
+        @SuppressWarnings("unchecked")
+        <T extends Statement> List<T> statements() {
+            int size = integer();
+            if(size < 0) {
+                return null;
+            }
+            List<T> statements = new ArrayList<>(size);
+            for(int i = 0; i < size; i++) {
+                statements.add((T) statement());
+            }
+            return statements;
+        }
+
+        private Expression expression() {
+            int tag = tag();
+            switch(tag) {
+                case NULL:
+                    return null;
+                case ASSIGN: {
+                    Assign expr = new Assign(token(), expression());
+                    expr.depth = integer();
+                    expr.slot = integer();
+                    expr.boxed = bool();
+                    return expr;
+                }
+                case GROUPING:
+                    return new Grouping(expression());
+                case LOGICAL:
+                    return new Logical(expression(), token(), expression());
+                case UNARY:
+                    return new Unary(token(), expression());
+                case BINARY: {
+                    Binary expr = new Binary(expression(), token(), expression());
+                    expr.numeric = bool();
+                    return expr;
+                }
+                case TERNARY:
+                    return new Ternary(expression(), token(), expression(), token(), expression());
+                case LITERAL:
+                    return new Literal(value());
+                case VARIABLE: {
+                    Variable expr = new Variable(token());
+                    expr.depth = integer();
+                    expr.slot = integer();
+                    expr.boxed = bool();
+                    return expr;
+                }
+                case THIS: {
+                    This expr = new This(token());
+                    expr.depth = integer();
+                    expr.slot = integer();
+                    expr.boxed = bool();
+                    return expr;
+                }
+                case GET: {
+                    Get expr = new Get(expression(), token());
+                    expr.site = integer();
+                    return expr;
+                }
+                case SET: {
+                    Set expr = new Set(expression(), token(), expression());
+                    expr.site = integer();
+                    return expr;
+                }
+                case CALLABLE: {
+                    Callable expr = new Callable(expression(), token(), expressions());
+                    expr.site = integer();
+                    return expr;
+                }
+                case SUPER: {
+                    Super expr = new Super(token(), token());
+                    expr.depth = integer();
+                    expr.slot = integer();
+                    expr.boxed = bool();
+                    expr.receiver = (This) expression();
+                    expr.site = integer();
+                    return expr;
+                }
+            }
+            throw new IllegalStateException("Bad expression tag " + tag + ".");
+        }
+
+        private Statement statement() {
+            int tag = tag();
+            switch(tag) {
+                case NULL:
+                    return null;
+                case PRINT:
+                    return new Print(expression());
+                case RETURN: {
+                    Return statement = new Return(token(), expression());
+                    statement.tail = bool();
+                    return statement;
+                }
+                case EXPR:
+                    return new Expr(expression());
+                case VAR: {
+                    Var statement = new Var(token(), expression());
+                    statement.slot = integer();
+                    statement.boxed = bool();
+                    return statement;
+                }
+                case BLOCK: {
+                    Block statement = new Block(statements());
+                    statement.frameSize = integer();
+                    return statement;
+                }
+                case IF: {
+                    Expression ifClause = expression();
+                    List<Statement> ifCode = statements();
+                    List<Expression> elifClause = expressions();
+                    List<List<Statement>> elifCode = null;
+                    int size = integer();
+                    if(size >= 0) {
+                        elifCode = new ArrayList<>(size);
+                        for(int i = 0; i < size; i++) {
+                            elifCode.add(statements());
+                        }
+                    }
+                    return new If(ifClause, ifCode, elifClause, elifCode, statements());
+                }
+                case WHILE:
+                    return new While(expression(), (Block) statement());
+                case FOR: {
+                    For statement = new For((Var) statement(), expression(), expression(), (Block) statement());
+                    statement.frameSize = integer();
+                    return statement;
+                }
+                case FUNCTION: {
+                    LoxFunction statement = new LoxFunction(token(), tokens(), statements(), FUNCTION_TYPES[tag()]);
+                    statement.slot = integer();
+                    statement.frameSize = integer();
+                    statement.boxed = bool();
+                    statement.boxedSlots = ints();
+                    statement.upvalueDepths = ints();
+                    statement.upvalueSlots = ints();
+                    return statement;
+                }
+                case CLASS: {
+                    LoxClass statement = new LoxClass(token(), (Variable) expression(), statements());
+                    statement.slot = integer();
+                    statement.boxed = bool();
+                    return statement;
+                }
+            }
+            throw new IllegalStateException("Bad statement tag " + tag + ".");
+        }
+    }
+}
@@ -2,21 +2,79 @@ package lox;
 
 import java.util.Map;
 import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Stack;
 
 
 
 
+/*
+ * Besides checking declarations, the Resolver tells every variable reference
+ * where its value lives, through its 'depth' and 'slot':
+ *
+ *   depth >= 0  a local of the enclosing function, 'depth' frames up;
+ *   GLOBAL      slot 'slot' of the global frame;
+ *   UPVALUE     the function's upvalue number 'slot'.
+ *
+ * A closure only captures the variables it names, each as a Cell shared
+ * with the frame that declared it, instead of holding on to the whole chain
+ * of enclosing Environments. Locals that some closure captures are 'boxed':
+ * their slot holds the Cell rather than the value.
+ */
 public class Resolver implements Statement.Visitor<Void>, Expression.Visitor<Void>{
+    static final int GLOBAL = -1;
+    static final int UPVALUE = -2;
+
     private final Interpreter interpreter;
     private final Stack<Map<String, Boolean> > scopes = new Stack<>(); 
+    private final Stack<Frame> frames = new Stack<>();
     private final Stack<FunctionType> inFunction = new Stack<>();
+    private final Stack<FunctionScope> functions = new Stack<>();
+    // Property accesses, calls and super lookups are numbered so that each
+    // Interpreter can keep its own inline cache for them.
+    private int sites = 0;
+
+    private static class Frame {
+        final Map<String, Local> locals = new HashMap<>();
+        int size = 0;
+    }
+
+    private static class Local {
+        final int slot;
+        final boolean parameter;
+        boolean captured = false;
+        // The declarations and references to mark as boxed if it is captured.
+        final List<Object> nodes = new ArrayList<>();
+
+        Local(int slot, boolean parameter) {
+            this.slot = slot;
+            this.parameter = parameter;
+        }
+    }
+
+    private static class FunctionScope {
+        // Index in 'scopes' of the function's own frame.
+        final int firstScope;
+        final Map<Local, Integer> upvalues = new HashMap<>();
+        final List<Integer> depths = new ArrayList<>();
+        final List<Integer> slots = new ArrayList<>();
+
+        FunctionScope(int firstScope) {
+            this.firstScope = firstScope;
+        }
+    }
 
 
     Resolver(Interpreter interpreter) {
         this.interpreter = interpreter;
         beginScope(); 
+        // Top-level code outside any function; its blocks are its locals.
+        functions.add(new FunctionScope(1));
+        for(NativeFunction function: NativeFunction.LIBRARY) {
+            declare(function.name, true, null);
+        }
         inFunction.add(FunctionType.NONE);
     }
 
@@ -25,12 +83,19 @@ public class Resolver implements Statement.Visitor<Void>, Expression.Visitor<Voi
             try{
                 resolve(statement); 
             } catch(ResolverError error) {
+                interpreter.context.error(error.line, error.message);
                 continue; 
             }
         }
     }
 
 
+    // Global slots the program uses, the natives' included.
+    int globalCount() {
+        return frames.get(0).size;
+    }
+
+
     private Void resolve(Statement statement) {
         return statement.accept(this);
     }
@@ -44,19 +109,96 @@ public class Resolver implements Statement.Visitor<Void>, Expression.Visitor<Voi
 
 
 
+    // A block that declares nothing gets no scope, and so no Environment:
+    // frameSize 0 tells the Interpreter to run it in the enclosing one.
     public Void visitBlock(Block statement) {
+        if(!declares(statement.statements)) {
+            performResolution(statement.statements);
+            statement.frameSize = 0;
+            return null;
+        }
         beginScope();
         performResolution(statement.statements);
-        endScope(); 
+        statement.frameSize = endScope(); 
         return null;
     }
 
+    private static boolean declares(List<Statement> statements) {
+        for(Statement statement: statements) {
+            if(statement instanceof Var || statement instanceof LoxFunction || statement instanceof LoxClass) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void beginScope() {
         scopes.add(new HashMap<>()); 
+        frames.add(new Frame());
     }
 
-    private void endScope() {
+    private int endScope() {
         scopes.pop(); 
+        Frame frame = frames.pop();
+        for(Local local: frame.locals.values()) {
+            if(local.captured) {
+                for(Object node: local.nodes) {
+                    box(local, node);
+                }
+            }
+        }
+        return frame.size;
+    }
+
+    private void box(Local local, Object node) {
+        if(node instanceof Variable) {
+            ((Variable) node).boxed = true;
+        } else if(node instanceof Assign) {
+            ((Assign) node).boxed = true;
+        } else if(node instanceof This) {
+            ((This) node).boxed = true;
+        } else if(node instanceof Super) {
+            ((Super) node).boxed = true;
+        } else if(node instanceof Var) {
+            ((Var) node).boxed = true;
+        } else if(node instanceof LoxClass) {
+            ((LoxClass) node).boxed = true;
+        } else if(node instanceof LoxFunction) {
+            LoxFunction function = (LoxFunction) node;
+            if(local.parameter) {
+                // A parameter, or 'this': boxed when the call starts.
+                function.boxedSlots = Arrays.copyOf(function.boxedSlots, function.boxedSlots.length + 1);
+                function.boxedSlots[function.boxedSlots.length - 1] = local.slot;
+            } else {
+                function.boxed = true;
+            }
+        }
+    }
+
+    private int declare(String name, boolean defined, Object node) {
+        scopes.peek().put(name, defined);
+        Frame frame = frames.peek();
+        Local local = frame.locals.get(name);
+        if(local == null) {
+            local = new Local(frame.size++, false);
+            frame.locals.put(name, local);
+            if(frames.size() == 1) {
+                interpreter.reserveGlobals(frame.size);
+            }
+        }
+        if(frames.size() > 1) {
+            local.nodes.add(node);
+        }
+        return local.slot;
+    }
+
+    private int declareParameter(String name, LoxFunction function) {
+        scopes.peek().put(name, true);
+        Frame frame = frames.peek();
+        Local local = new Local(frame.size++, true);
+        local.nodes.add(function);
+        frame.locals.put(name, local);
+        return local.slot;
     }
 
     public Void visitVar(Var statement) {
@@ -65,7 +207,7 @@ public class Resolver implements Statement.Visitor<Void>, Expression.Visitor<Voi
                 throw new ResolverError().containsDeclaration(statement.name);
             }
         } 
-        scopes.peek().put(statement.name.lexeme, false); 
+        statement.slot = declare(statement.name.lexeme, false, statement); 
         resolve(statement.value);
         scopes.peek().put(statement.name.lexeme, true); 
         return null;
@@ -75,69 +217,120 @@ public class Resolver implements Statement.Visitor<Void>, Expression.Visitor<Voi
         if(scopes.peek().containsKey(expr.name.lexeme) && scopes.peek().get(expr.name.lexeme)  == (Boolean) false) {
             throw new ResolverError().declarationUsage(expr.name); 
         } 
-        int scope = findBinding(expr.name); 
-        if(scope == -1) {
-            throw new ResolverError().undeclaredVariableUsed(expr.name); 
-        } else {
-            interpreter.resolve(expr, scope); 
-        }
+        int scope = findScope(expr.name); 
+        expr.depth = depthOf(scope);
+        expr.slot = slotOf(scope, expr.name, expr);
         return null;
     }
 
     public Void visitThis(This expr) {
-        int scope = findBinding(expr.dis);
-        if(scope == -1) {
-            throw new ResolverError().undeclaredVariableUsed(expr.dis); 
-        } else {
-            interpreter.resolve(expr, scope); 
-        }
+        int scope = findScope(expr.dis);
+        expr.depth = depthOf(scope);
+        expr.slot = slotOf(scope, expr.dis, expr);
         return null;
     }
 
 
 
 
-    private int findBinding(Token name) {
+    // Index in 'scopes' of the innermost declaration of the name.
+    private int findScope(Token name) {
         for(int i = scopes.size() - 1; i >= 0; i--) {
             if(scopes.get(i).containsKey(name.lexeme)) {
-                return (scopes.size() - 1 - i); 
+                return i; 
             }
         }
         throw new ResolverError().undeclaredVariableUsed(name);  
     }
 
+    private int depthOf(int scope) {
+        if(scope == 0) {
+            return GLOBAL;
+        } else if(scope >= functions.peek().firstScope) {
+            return scopes.size() - 1 - scope;
+        }
+        return UPVALUE;
+    }
+
+    private int slotOf(int scope, Token name, Object node) {
+        Local local = frames.get(scope).locals.get(name.lexeme);
+        if(scope == 0) {
+            return local.slot;
+        } else if(scope >= functions.peek().firstScope) {
+            local.nodes.add(node);
+            return local.slot;
+        }
+        return upvalue(functions.size() - 1, local, scope);
+    }
+
+    // The index of the local's upvalue in function number 'level', adding
+    // one to it, and to every function in between, if needed.
+    private int upvalue(int level, Local local, int scope) {
+        FunctionScope function = functions.get(level);
+        Integer index = function.upvalues.get(local);
+        if(index != null) {
+            return index;
+        }
+        int depth;
+        int slot;
+        if(scope >= functions.get(level - 1).firstScope) {
+            // Declared by the enclosing function: taken from its frames when
+            // the closure is created, which happens one scope outside the
+            // function's own frame.
+            local.captured = true;
+            depth = function.firstScope - 1 - scope;
+            slot = local.slot;
+        } else {
+            depth = UPVALUE;
+            slot = upvalue(level - 1, local, scope);
+        }
+        index = function.depths.size();
+        function.depths.add(depth);
+        function.slots.add(slot);
+        function.upvalues.put(local, index);
+        return index;
+    }
+
     public Void visitLoxFunction(LoxFunction statement) {
         if(statement.type == FunctionType.FUNCTION) {
             inFunction.add(FunctionType.FUNCTION);
-            scopes.peek().put(statement.name.lexeme, true);
+            statement.slot = declare(statement.name.lexeme, true, statement);
         }
+        statement.boxedSlots = new int[0];
         beginScope(); 
+        FunctionScope function = new FunctionScope(scopes.size() - 1);
+        functions.add(function);
         if(statement.type == FunctionType.METHOD || statement.type == FunctionType.INITIALIZER) {
             inFunction.add(statement.type); 
-            scopes.peek().put("this", true); 
-            beginScope();
+            declareParameter("this", statement); 
         }
         for(int i = 0; i < statement.parameters.size(); i++) {
-            scopes.peek().put(statement.parameters.get(i).lexeme, true); 
+            declareParameter(statement.parameters.get(i).lexeme, statement); 
         } 
         performResolution(statement.funCode);
         
-        endScope(); 
-        inFunction.pop(); 
-        if(statement.type == FunctionType.METHOD || statement.type == FunctionType.INITIALIZER) {
-            endScope(); 
+        statement.frameSize = endScope(); 
+        functions.pop();
+        statement.upvalueDepths = new int[function.depths.size()];
+        statement.upvalueSlots = new int[function.slots.size()];
+        for(int i = 0; i < function.depths.size(); i++) {
+            statement.upvalueDepths[i] = function.depths.get(i);
+            statement.upvalueSlots[i] = function.slots.get(i);
         }
+        inFunction.pop(); 
         return null;
     }
 
 
 
     public Void visitGet(Get expr) {
+        expr.site = sites++;
         resolve(expr.variable); 
         return null;
     }
 
     public Void visitSet(Set expr) {
+        expr.site = sites++;
         resolve(expr.variable); 
         resolve(expr.value); 
         return null;
@@ -146,19 +339,24 @@ public class Resolver implements Statement.Visitor<Void>, Expression.Visitor<Voi
 
 
     public Void visitSuper(Super expr) {
-        int scope = findBinding(expr.ssup);
-        interpreter.resolve(expr, scope);
-        return null; 
+        int scope = findScope(expr.ssup);
+        expr.depth = depthOf(scope);
+        expr.slot = slotOf(scope, expr.ssup, expr);
+        expr.receiver = new This(new Token(TokenType.THIS, "this", null, expr.ssup.line));
+        expr.site = sites++;
+        return visitThis(expr.receiver); 
     }
 
 
     public Void visitLoxClass(LoxClass statement) {
-        scopes.peek().put(statement.name.lexeme, true); 
+        statement.slot = declare(statement.name.lexeme, true, statement); 
         if(statement.parentClass != null) {
-            int scope = findBinding(statement.parentClass.name); 
-            interpreter.resolve(statement.parentClass, scope);
+            resolve(statement.parentClass); 
             beginScope();
-            scopes.peek().put("super", true);  
+            declare("super", true, null);  
+            // Only methods refer to 'super', so the Interpreter always
+            // stores it in a Cell.
+            frames.peek().locals.get("super").captured = true;
         }   
         for(LoxFunction func: statement.methods) {
             resolve(func); 
@@ -171,6 +369,7 @@ public class Resolver implements Statement.Visitor<Void>, Expression.Visitor<Voi
 
 
     public Void visitCallable(Callable expr) {
+        expr.site = sites++;
         resolve(expr.name); 
         for(int i = 0; i < expr.arguments.size(); i++) {
             resolve(expr.arguments.get(i)); 
@@ -198,6 +397,18 @@ public class Resolver implements Statement.Visitor<Void>, Expression.Visitor<Voi
     public Void visitBinary(Binary expr) {
         resolve(expr.left_expr);
         resolve(expr.right_expr);
+        switch(expr.operator.type) {
+            case MINUS:
+            case STAR:
+            case SLASH:
+                expr.numeric = true;
+                break;
+            case PLUS:
+                // Strings only concatenate with strings, so one numeric side
+                // is enough to rule concatenation out.
+                expr.numeric = Interpreter.isNumeric(expr.left_expr) || Interpreter.isNumeric(expr.right_expr);
+                break;
+        }
         return null;
     }
 
@@ -213,8 +424,9 @@ public class Resolver implements Statement.Visitor<Void>, Expression.Visitor<Voi
     }
 
     public Void visitAssign(Assign expr) {
-        int scope = findBinding(expr.name); 
-        interpreter.resolve(expr, scope); 
+        int scope = findScope(expr.name); 
+        expr.depth = depthOf(scope);
+        expr.slot = slotOf(scope, expr.name, expr);
         resolve(expr.value);
         return null;
     }
@@ -235,6 +447,9 @@ public class Resolver implements Statement.Visitor<Void>, Expression.Visitor<Voi
             }
         }
         if(expression.expr != null) resolve(expression.expr);
+        // Nothing is left to do in the caller once the call returns, so
+        // the Interpreter can run the callee in the caller's place.
+        expression.tail = expression.expr instanceof Callable;
         return null;
     }
 
@@ -272,42 +487,52 @@ public class Resolver implements Statement.Visitor<Void>, Expression.Visitor<Voi
 
     @Override
     public Void visitFor(For expression) {
+        if(expression.init == null) {
+            resolve(expression.forClause); 
+            resolve(expression.forComp);
+            resolve(expression.forCode);
+            expression.frameSize = 0;
+            return null;
+        }
         beginScope();
         resolve(expression.init);
         resolve(expression.forClause); 
         resolve(expression.forComp);
         resolve(expression.forCode);
-        endScope();
+        expression.frameSize = endScope();
         return null; 
     }
 
 }
 
+// Reported to the Context by performResolution, where it is caught.
 class ResolverError extends RuntimeException {
+    int line;
+    String message;
 
+    private ResolverError error(int line, String message) {
+        this.line = line;
+        this.message = message;
+        return this;
+    }
 
     public ResolverError declarationUsage(Token name) {
-        Lox.error(name.line, "Can't use a variable as its own initializer while declaration.");
-        return this;
+        return error(name.line, "Can't use a variable as its own initializer while declaration.");
     }
 
     public ResolverError returnFromGlobalFrame(Token name) {
-        Lox.error(name.line, "Attempting to return from global frame.");
-        return this;
+        return error(name.line, "Attempting to return from global frame.");
     }
 
     public ResolverError undeclaredVariableUsed(Token name) {
-        Lox.error(name.line, "Undeclared variable used.");
-        return this;
+        return error(name.line, "Undeclared variable used.");
     }
     public ResolverError containsDeclaration(Token name) {
-        Lox.error(name.line, "Cannot redeclare variables in frames that are not global.");
-        return this;
+        return error(name.line, "Cannot redeclare variables in frames that are not global.");
     }
 
     public ResolverError returnFromInit(Token name) {
-        Lox.error(name.line, "Can't return an object that is not the instance that called the 'init' method."); 
-        return this; 
+        return error(name.line, "Can't return an object that is not the instance that called the 'init' method.");
     }
     
 }
@@ -9,11 +9,18 @@ import java.util.HashMap;
 
 public class Scanner {
 
-    private final String source;
+    private final CharSequence source;
+    private final int length;
+    private final Context context;
     private final List<Token> tokens = new ArrayList<>();
     private int line = 1;
     private int start = 0; 
     private int current = 0;
+    // Each distinct lexeme becomes a String once, however often it occurs,
+    // and is looked up without making one. Open addressing on String's own
+    // hash code, so the table can be grown without rehashing the source.
+    private String[] lexemes = new String[1024];
+    private int lexemeCount = 0;
     private static final Map<String, TokenType> keywords;
     
     
@@ -41,8 +48,10 @@ public class Scanner {
 
 
 
-    Scanner (String source) { 
+    Scanner (CharSequence source, Context context) { 
         this.source = source;
+        this.length = source.length();
+        this.context = context;
     }
 
     public List<Token> scanTokens() { 
@@ -112,8 +121,7 @@ public class Scanner {
                 } else if (isIdentifier(c)) {
                     addIdentifier();
                 } else {
-                    Lox.error(this.line, "Unrecognized Character");
-                    Lox.hadError = true;
+                    context.error(this.line, "Unrecognized Character");
                 }
                 break;
             
@@ -150,7 +158,7 @@ public class Scanner {
     }
 
     private boolean isAtEnd() {
-        return this.current >= this.source.length();
+        return this.current >= this.length;
     }
 
     // Token adders and helpers
@@ -163,11 +171,11 @@ public class Scanner {
         }
 
         if(isAtEnd()) {
-            Lox.error(this.line, "Unterminated String."); 
+            context.error(this.line, "Unterminated String."); 
             return;
         } 
         
-        String value = this.source.substring(start + 1, current); 
+        String value = lexeme(start + 1, current); 
         this.readNext(); 
         this.addToken(TokenType.STRING, value); 
         return;
@@ -227,11 +235,7 @@ public class Scanner {
     }
 
     private TokenType getLexemeType() {
-        if(keywords.containsKey(this.source.substring(this.start, this.current))) {
-            return keywords.get(this.source.substring(this.start, this.current));
-        } else {
-            return TokenType.IDENTIFIER;
-        }
+        return keywords.getOrDefault(lexeme(this.start, this.current), TokenType.IDENTIFIER);
     }
 
 
@@ -246,10 +250,59 @@ public class Scanner {
     }
 
     private void addToken(TokenType type, Object literal) {
-        String lexeme = this.source.substring(start, current);
+        String lexeme = lexeme(start, current);
         this.tokens.add(new Token(type, lexeme, literal, this.line));
     }
 
+    private String lexeme(int from, int to) {
+        int hash = 0;
+        for(int i = from; i < to; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+        int mask = lexemes.length - 1;
+        for(int i = hash & mask; ; i = (i + 1) & mask) {
+            String lexeme = lexemes[i];
+            if(lexeme == null) {
+                lexeme = source.subSequence(from, to).toString();
+                lexemes[i] = lexeme;
+                if(2 * ++lexemeCount > lexemes.length) {
+                    growLexemes();
+                }
+                return lexeme;
+            }
+            if(lexeme.hashCode() == hash && sameAs(lexeme, from, to)) {
+                return lexeme;
+            }
+        }
+    }
+
+    private boolean sameAs(String lexeme, int from, int to) {
+        if(lexeme.length() != to - from) {
+            return false;
+        }
+        for(int i = 0; i < lexeme.length(); i++) {
+            if(lexeme.charAt(i) != source.charAt(from + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void growLexemes() {
+        String[] old = lexemes;
+        lexemes = new String[2 * old.length];
+        int mask = lexemes.length - 1;
+        for(String lexeme: old) {
+            if(lexeme != null) {
+                int i = lexeme.hashCode() & mask;
+                while(lexemes[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                lexemes[i] = lexeme;
+            }
+        }
+    }
+
 
 
 
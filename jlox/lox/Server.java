@@ -0,0 +1,199 @@
+package lox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/*
+ * Keeps one JVM running and runs scripts for the clients that connect to
+ * it, so a script no longer pays for starting a JVM and runs on code the
+ * JVM has long since compiled. Each script gets a Context of its own and a
+ * thread of its own, and Programs are cached by the hash of their source.
+ *
+ * The server listens on a loopback TCP port, or on a Unix-domain socket if
+ * given a path, and takes one request per connection. The request is a
+ * line: 'run PATH' runs the script at PATH, relative to the server's
+ * working directory, and 'eval' runs the rest of what the client sends, up
+ * to the end of its side of the connection. The reply streams what the
+ * script prints as lines starting with 'out ' and its diagnostics as lines
+ * starting with 'err ', and ends with 'exit STATUS': 0, 65 for a compile
+ * error, 70 for a runtime error or a crash of jlox itself, 74 if the
+ * script could not be read, or 64 for a request the server does not
+ * understand.
+ *
+ *   jlox [--engine=jit|tree|vm] [--max-depth=N] --serve=PORT|PATH
+ *   { echo eval; cat script.lox; } | nc -N localhost PORT
+ */
+class Server {
+    private final boolean jit;
+    private final int maxDepth;
+    private final ProgramCache programs;
+
+    Server(boolean vm, boolean jit, int maxDepth) {
+        this.jit = jit;
+        this.maxDepth = maxDepth;
+        this.programs = new ProgramCache(vm);
+    }
+
+    void serve(String address) throws IOException {
+        ServerSocketChannel server;
+        if(address.chars().allMatch(Character::isDigit)) {
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address)));
+        } else {
+            Path path = Paths.get(address);
+            // A socket left behind by a server that was killed.
+            if(Files.exists(path, LinkOption.NOFOLLOW_LINKS)
+               && Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther()) {
+                Files.delete(path);
+            }
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            server.bind(UnixDomainSocketAddress.of(path));
+            path.toFile().deleteOnExit();
+        }
+        System.err.println("Serving on " + server.getLocalAddress());
+
+        // Not a fixed pool: a long-running script must not hold up the rest.
+        ExecutorService workers = Executors.newCachedThreadPool(Program.threads(maxDepth));
+        while(true) {
+            SocketChannel connection = server.accept();
+            workers.execute(() -> handle(connection));
+        }
+    }
+
+    private void handle(SocketChannel connection) {
+        try(connection) {
+            InputStream request = new BufferedInputStream(Channels.newInputStream(connection));
+            OutputStream reply = new BufferedOutputStream(Channels.newOutputStream(connection));
+            Tagged out = new Tagged(reply, "out ");
+            Tagged err = new Tagged(reply, "err ");
+            Context context = new Context(new PrintStream(out, false, StandardCharsets.UTF_8), new PrintStream(err, false, StandardCharsets.UTF_8));
+            int status;
+            try {
+                status = run(request, context);
+            } catch(RuntimeException | StackOverflowError e) {
+                // An error jlox does not report itself, or code nested deeper
+                // than the stack allows; the client still gets its reply.
+                context.err.println("jlox crashed: " + e);
+                status = 70;
+            }
+            context.out.flush();
+            context.err.flush();
+            out.endLine();
+            err.endLine();
+            reply.write(("exit " + status + "\n").getBytes(StandardCharsets.UTF_8));
+            reply.flush();
+        } catch(IOException e) {
+            // The client has gone; there is no one left to tell.
+        }
+    }
+
+    private int run(InputStream request, Context context) throws IOException {
+        String line = readLine(request);
+        String source;
+        if(line.equals("eval")) {
+            source = new String(request.readAllBytes(), StandardCharsets.UTF_8);
+        } else if(line.startsWith("run ")) {
+            try {
+                source = new String(Files.readAllBytes(Paths.get(line.substring("run ".length()))), Charset.defaultCharset());
+            } catch(IOException e) {
+                context.err.println("Cannot read the script: " + e);
+                return 74;
+            }
+        } else {
+            context.err.println("Expected 'run PATH' or 'eval'.");
+            return 64;
+        }
+
+        context.jit = jit;
+        context.maxDepth = maxDepth;
+        String hash = Program.hash(source);
+        Program program = programs.find(hash);
+        if(program == null) {
+            program = programs.compile(hash, source, context);
+        }
+        if(program != null) {
+            program.run(context);
+        }
+        return context.hadError ? 65 : context.hadRuntimeError ? 70 : 0;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while((b = in.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8).strip();
+    }
+
+    // Starts every line written through it with a tag, so that a script's
+    // output and its diagnostics can share one connection.
+    private static class Tagged extends OutputStream {
+        private final OutputStream reply;
+        private final byte[] tag;
+        private boolean lineStart = true;
+
+        Tagged(OutputStream reply, String tag) {
+            this.reply = reply;
+            this.tag = tag.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            int end = offset + length;
+            while(offset < end) {
+                if(lineStart) {
+                    reply.write(tag);
+                    lineStart = false;
+                }
+                int newline = offset;
+                while(newline < end && bytes[newline] != '\n') {
+                    newline++;
+                }
+                if(newline < end) {
+                    reply.write(bytes, offset, newline + 1 - offset);
+                    lineStart = true;
+                    offset = newline + 1;
+                } else {
+                    reply.write(bytes, offset, end - offset);
+                    offset = end;
+                }
+            }
+        }
+
+        // Finishes a line the script left open, before the exit status.
+        void endLine() throws IOException {
+            if(!lineStart) {
+                reply.write('\n');
+                lineStart = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package lox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+
+/*
+ * A script read for the Scanner without copying it onto the heap. The file
+ * is memory-mapped, and when it is all ASCII, which reads the same in any
+ * charset jlox might be using, the Scanner reads characters straight out
+ * of the mapping. Anything else is decoded with the default charset, as
+ * Lox.runFile always did.
+ */
+final class SourceFile {
+    final Path path;
+    final ByteBuffer bytes;
+    final CharSequence text;
+
+    private SourceFile(Path path, ByteBuffer bytes, CharSequence text) {
+        this.path = path;
+        this.bytes = bytes;
+        this.text = text;
+    }
+
+    static SourceFile map(Path path) throws IOException {
+        ByteBuffer bytes;
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        CharSequence text = isAscii(bytes) ? new Ascii(bytes) : Charset.defaultCharset().decode(bytes.duplicate());
+        return new SourceFile(path, bytes, text);
+    }
+
+    String hash() {
+        return Program.hash(bytes.duplicate());
+    }
+
+    private static boolean isAscii(ByteBuffer bytes) {
+        for(int i = 0, end = bytes.limit(); i < end; i++) {
+            if(bytes.get(i) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class Ascii implements CharSequence {
+        private final ByteBuffer bytes;
+        private final int start;
+        private final int length;
+
+        Ascii(ByteBuffer bytes) {
+            this(bytes, 0, bytes.limit());
+        }
+
+        private Ascii(ByteBuffer bytes, int start, int length) {
+            this.bytes = bytes;
+            this.start = start;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) bytes.get(start + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return new Ascii(bytes, start + from, to - from);
+        }
+
+        @Override
+        public String toString() {
+            byte[] chars = new byte[length];
+            bytes.get(start, chars);
+            return new String(chars, 0, length, StandardCharsets.ISO_8859_1);
+        }
+    }
+}
@@ -0,0 +1,5 @@
+package lox;
+
+public enum Specialization {
+    UNINITIALIZED, DOUBLE, STRING, GENERIC;
+}
@@ -31,6 +31,7 @@ class Print extends Statement {
 class Return extends Statement {
 	final Token name;
 	final Expression expr;
+	boolean tail;
 
 	Return(Token name, Expression expr) {
 		this.name = name;
@@ -57,6 +58,8 @@ class Expr extends Statement {
 class Var extends Statement {
 	final Token name;
 	final Expression value;
+	int slot;
+	boolean boxed;
 
 	Var(Token name, Expression value) {
 		this.name = name;
@@ -70,6 +73,7 @@ class Var extends Statement {
 
 class Block extends Statement {
 	final List<Statement> statements;
+	int frameSize;
 
 	Block(List<Statement> statements) {
 		this.statements = statements;
@@ -119,6 +123,7 @@ class For extends Statement {
 	final Expression forClause;
 	final Expression forComp;
 	final Block forCode;
+	int frameSize;
 
 	For(Var init, Expression forClause, Expression forComp, Block forCode) {
 		this.init = init;
@@ -137,6 +142,12 @@ class LoxFunction extends Statement {
 	final List<Token> parameters;
 	final List<Statement> funCode;
 	final FunctionType type;
+	int slot;
+	int frameSize;
+	boolean boxed;
+	int[] boxedSlots;
+	int[] upvalueDepths;
+	int[] upvalueSlots;
 
 	LoxFunction(Token name, List<Token> parameters, List<Statement> funCode, FunctionType type) {
 		this.name = name;
@@ -154,6 +165,8 @@ class LoxClass extends Statement {
 	final Token name;
 	final Variable parentClass;
 	final List<LoxFunction> methods;
+	int slot;
+	boolean boxed;
 
 	LoxClass(Token name, Variable parentClass, List<LoxFunction> methods) {
 		this.name = name;
@@ -0,0 +1,616 @@
+package lox;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Arrays;
+import java.util.List;
+
+
+/*
+ * Stack machine that runs the bytecode produced by the Compiler. Every call
+ * gets a frame whose slots are a window onto the shared value stack, so
+ * arguments and locals never leave the stack unless a closure captures them.
+ * Both stacks live on the heap and grow as needed, so recursion is only
+ * bounded by the Context's maxDepth and not by the JVM's thread stack.
+ */
+public class VM {
+    private final Context context;
+
+    private Object[] stack = new Object[256];
+    private int top = 0;
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+    private Upvalue openUpvalues = null;
+    // In the Resolver's global slots, the natives first.
+    private final Object[] globals;
+
+    VM(Context context, int globals) {
+        this.context = context;
+        this.globals = new Object[globals];
+        for(int i = 0; i < NativeFunction.LIBRARY.length; i++) {
+            this.globals[i] = NativeFunction.LIBRARY[i];
+        }
+    }
+
+
+    public void interpret(VMFunction script) {
+        VMClosure closure = new VMClosure(script);
+        push(closure);
+        call(closure, 0, 0);
+        try {
+            run();
+        } catch(InterpreterError error) {
+            top = 0;
+            frameCount = 0;
+            openUpvalues = null;
+            context.runtimeError(error.line, error.message);
+            throw error;
+        }
+    }
+
+
+    private void run() {
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.closure.function.chunk.code;
+        Object[] constants = frame.closure.function.chunk.constants;
+        int ip = frame.ip;
+        int base = frame.base;
+
+        while(true) {
+            byte instruction = code[ip++];
+            switch(instruction) {
+                case OpCode.CONSTANT:
+                    push(constants[readShort(code, ip)]);
+                    ip += 2;
+                    break;
+                case OpCode.NIL: push(null); break;
+                case OpCode.TRUE: push(true); break;
+                case OpCode.FALSE: push(false); break;
+                case OpCode.POP: top--; break;
+
+                case OpCode.GET_LOCAL:
+                    push(stack[base + (code[ip++] & 0xff)]);
+                    break;
+                case OpCode.SET_LOCAL:
+                    stack[base + (code[ip++] & 0xff)] = stack[top - 1];
+                    break;
+                case OpCode.GET_GLOBAL:
+                    push(globals[readShort(code, ip)]);
+                    ip += 2;
+                    break;
+                case OpCode.DEFINE_GLOBAL:
+                    globals[readShort(code, ip)] = stack[--top];
+                    ip += 2;
+                    break;
+                case OpCode.SET_GLOBAL:
+                    globals[readShort(code, ip)] = stack[top - 1];
+                    ip += 2;
+                    break;
+                case OpCode.GET_UPVALUE: {
+                    Upvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                    push(upvalue.location >= 0 ? stack[upvalue.location] : upvalue.closed);
+                    break;
+                }
+                case OpCode.SET_UPVALUE: {
+                    Upvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                    if(upvalue.location >= 0) {
+                        stack[upvalue.location] = stack[top - 1];
+                    } else {
+                        upvalue.closed = stack[top - 1];
+                    }
+                    break;
+                }
+
+                case OpCode.GET_PROPERTY: {
+                    String name = (String) constants[readShort(code, ip)];
+                    ip += 2;
+                    Object receiver = stack[top - 1];
+                    if(!(receiver instanceof VMInstance)) {
+                        throw new GetError().notLoxObject(token(name, frame, ip));
+                    }
+                    VMInstance instance = (VMInstance) receiver;
+                    Object value = instance.fields.get(name);
+                    if(value != null || instance.fields.containsKey(name)) {
+                        stack[top - 1] = value;
+                        break;
+                    }
+                    VMClosure method = instance.klass.methods.get(name);
+                    if(method == null) {
+                        throw new VMError(line(frame, ip)).fieldNotFound(name);
+                    }
+                    stack[top - 1] = new VMBoundMethod(instance, method);
+                    break;
+                }
+                case OpCode.SET_PROPERTY: {
+                    String name = (String) constants[readShort(code, ip)];
+                    ip += 2;
+                    Object receiver = stack[top - 2];
+                    if(!(receiver instanceof VMInstance)) {
+                        throw new GetError().notLoxObject(token(name, frame, ip));
+                    }
+                    Object value = stack[--top];
+                    ((VMInstance) receiver).fields.put(name, value);
+                    stack[top - 1] = value;
+                    break;
+                }
+                case OpCode.GET_SUPER: {
+                    String name = (String) constants[readShort(code, ip)];
+                    ip += 2;
+                    Object parent = stack[--top];
+                    if(!(parent instanceof VMClass)) {
+                        throw new VMError(line(frame, ip)).error("The super keyword doesn't point to a LoxClass.");
+                    }
+                    VMClosure method = ((VMClass) parent).methods.get(name);
+                    if(method == null) {
+                        throw new VMError(line(frame, ip)).error("The name doesn't resolve to a defined method.");
+                    }
+                    stack[top - 1] = new VMBoundMethod((VMInstance) stack[top - 1], method);
+                    break;
+                }
+
+                case OpCode.EQUAL: {
+                    Object right = stack[--top];
+                    stack[top - 1] = isEqual(stack[top - 1], right);
+                    break;
+                }
+                case OpCode.NOT_EQUAL: {
+                    Object right = stack[--top];
+                    stack[top - 1] = !isEqual(stack[top - 1], right);
+                    break;
+                }
+                case OpCode.GREATER:
+                case OpCode.GREATER_EQUAL:
+                case OpCode.LESS:
+                case OpCode.LESS_EQUAL:
+                case OpCode.SUBTRACT:
+                case OpCode.MULTIPLY:
+                case OpCode.DIVIDE: {
+                    Object left = stack[top - 2];
+                    Object right = stack[top - 1];
+                    if(!(left instanceof Double && right instanceof Double)) {
+                        throw new BinaryError(operator(instruction, frame, ip), left, right).typeError();
+                    }
+                    double a = (Double) left;
+                    double b = (Double) right;
+                    top--;
+                    switch(instruction) {
+                        case OpCode.GREATER: stack[top - 1] = a > b; break;
+                        case OpCode.GREATER_EQUAL: stack[top - 1] = a >= b; break;
+                        case OpCode.LESS: stack[top - 1] = a < b; break;
+                        case OpCode.LESS_EQUAL: stack[top - 1] = a <= b; break;
+                        case OpCode.SUBTRACT: stack[top - 1] = a - b; break;
+                        case OpCode.MULTIPLY: stack[top - 1] = a * b; break;
+                        default:
+                            if(b == 0) {
+                                throw new BinaryError(operator(instruction, frame, ip), left, right).invalidArgument();
+                            }
+                            stack[top - 1] = a / b;
+                    }
+                    break;
+                }
+                case OpCode.ADD: {
+                    Object left = stack[top - 2];
+                    Object right = stack[top - 1];
+                    if(left instanceof Double && right instanceof Double) {
+                        stack[top - 2] = (Double) left + (Double) right;
+                    } else if(LoxString.isString(left) && LoxString.isString(right)) {
+                        stack[top - 2] = LoxString.concat(left, right);
+                    } else {
+                        throw new BinaryError(operator(instruction, frame, ip), left, right).typeError();
+                    }
+                    top--;
+                    break;
+                }
+                case OpCode.NOT:
+                    stack[top - 1] = !isTruth(stack[top - 1]);
+                    break;
+                case OpCode.NEGATE:
+                    if(!(stack[top - 1] instanceof Double)) {
+                        throw new VMError(line(frame, ip)).error("The unary operator: '-' can only negate numbers.");
+                    }
+                    stack[top - 1] = -(Double) stack[top - 1];
+                    break;
+
+                case OpCode.PRINT:
+                    context.out.println(stringify(stack[--top]));
+                    break;
+
+                case OpCode.JUMP:
+                    ip += readShort(code, ip) + 2;
+                    break;
+                case OpCode.JUMP_IF_FALSE:
+                    if(!isTruth(stack[--top])) {
+                        ip += readShort(code, ip);
+                    }
+                    ip += 2;
+                    break;
+                case OpCode.LOOP:
+                    ip -= readShort(code, ip) - 2;
+                    break;
+
+                case OpCode.CALL:
+                case OpCode.INVOKE:
+                case OpCode.TAIL_CALL:
+                case OpCode.TAIL_INVOKE: {
+                    int argCount;
+                    int calls = frameCount;
+                    frame.ip = ip;
+                    if(instruction == OpCode.CALL || instruction == OpCode.TAIL_CALL) {
+                        argCount = code[ip] & 0xff;
+                        frame.ip = ip + 1;
+                        callValue(stack[top - argCount - 1], argCount);
+                    } else {
+                        String name = (String) constants[readShort(code, ip)];
+                        argCount = code[ip + 2] & 0xff;
+                        frame.ip = ip + 3;
+                        invoke(name, argCount);
+                    }
+                    // A tail call that pushed a frame takes over the caller's;
+                    // anything else leaves its result for the RETURN after it.
+                    if(frameCount > calls && (instruction == OpCode.TAIL_CALL || instruction == OpCode.TAIL_INVOKE)) {
+                        replaceCaller();
+                    }
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+
+                case OpCode.CLOSURE: {
+                    VMFunction function = (VMFunction) constants[readShort(code, ip)];
+                    ip += 2;
+                    VMClosure closure = new VMClosure(function);
+                    for(int i = 0; i < function.upvalueCount; i++) {
+                        int isLocal = code[ip++];
+                        int index = code[ip++] & 0xff;
+                        if(isLocal == 1) {
+                            closure.upvalues[i] = captureUpvalue(base + index);
+                        } else {
+                            closure.upvalues[i] = frame.closure.upvalues[index];
+                        }
+                    }
+                    push(closure);
+                    break;
+                }
+                case OpCode.CLOSE_UPVALUE:
+                    closeUpvalues(top - 1);
+                    top--;
+                    break;
+
+                case OpCode.RETURN: {
+                    Object result = stack[--top];
+                    closeUpvalues(base);
+                    frameCount--;
+                    if(frameCount == 0) {
+                        top = 0;
+                        return;
+                    }
+                    Arrays.fill(stack, base, top, null);
+                    top = base;
+                    push(result);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+
+                case OpCode.CLASS:
+                    push(new VMClass((String) constants[readShort(code, ip)]));
+                    ip += 2;
+                    break;
+                case OpCode.INHERIT: {
+                    Object parent = stack[top - 2];
+                    if(!(parent instanceof VMClass)) {
+                        throw new VMError(line(frame, ip)).error("The identifier is not a Lox Class.");
+                    }
+                    ((VMClass) stack[top - 1]).methods.putAll(((VMClass) parent).methods);
+                    top--;
+                    break;
+                }
+                case OpCode.METHOD: {
+                    String name = (String) constants[readShort(code, ip)];
+                    ip += 2;
+                    ((VMClass) stack[top - 2]).methods.put(name, (VMClosure) stack[--top]);
+                    break;
+                }
+
+                default:
+                    throw new VMError(line(frame, ip)).error("Unknown instruction " + instruction + ".");
+            }
+        }
+    }
+
+
+    // Calls
+
+    private void callValue(Object callee, int argCount) {
+        if(callee instanceof VMClosure) {
+            call((VMClosure) callee, argCount, currentLine());
+        } else if(callee instanceof VMBoundMethod) {
+            VMBoundMethod bound = (VMBoundMethod) callee;
+            stack[top - argCount - 1] = bound.receiver;
+            call(bound.method, argCount, currentLine());
+        } else if(callee instanceof VMClass) {
+            VMClass klass = (VMClass) callee;
+            stack[top - argCount - 1] = new VMInstance(klass);
+            VMClosure init = klass.methods.get("init");
+            if(init != null) {
+                call(init, argCount, currentLine());
+            } else {
+                top -= argCount;
+            }
+        } else if(callee instanceof NativeFunction) {
+            NativeFunction function = (NativeFunction) callee;
+            if(argCount != function.arity) {
+                throw new CallableError(new Token(TokenType.RIGHT_PAREN, ")", null, currentLine())).invalidNumberOfArguments(argCount, function.arity);
+            }
+            List<Object> arguments = (argCount == 0) ? List.of() : Arrays.asList(Arrays.copyOfRange(stack, top - argCount, top));
+            top -= argCount;
+            stack[top - 1] = function.call(arguments, null);
+        } else {
+            throw new CallableError(token(")", frames[frameCount - 1], frames[frameCount - 1].ip)).invalidCallable(callee);
+        }
+    }
+
+    // Slides the frame just pushed, callee and arguments included, down over
+    // the frame that made the call, so tail calls run in constant space.
+    private void replaceCaller() {
+        CallFrame callee = frames[frameCount - 1];
+        CallFrame caller = frames[frameCount - 2];
+        closeUpvalues(caller.base);
+        int size = top - callee.base;
+        System.arraycopy(stack, callee.base, stack, caller.base, size);
+        Arrays.fill(stack, caller.base + size, top, null);
+        top = caller.base + size;
+        caller.closure = callee.closure;
+        caller.ip = 0;
+        frameCount--;
+    }
+
+    private void invoke(String name, int argCount) {
+        Object receiver = stack[top - argCount - 1];
+        if(!(receiver instanceof VMInstance)) {
+            throw new GetError().notLoxObject(token(name, frames[frameCount - 1], frames[frameCount - 1].ip));
+        }
+        VMInstance instance = (VMInstance) receiver;
+        Object field = instance.fields.get(name);
+        if(field != null || instance.fields.containsKey(name)) {
+            stack[top - argCount - 1] = field;
+            callValue(field, argCount);
+            return;
+        }
+        VMClosure method = instance.klass.methods.get(name);
+        if(method == null) {
+            throw new VMError(currentLine()).fieldNotFound(name);
+        }
+        call(method, argCount, currentLine());
+    }
+
+    private void call(VMClosure closure, int argCount, int line) {
+        if(argCount != closure.function.arity) {
+            throw new CallableError(new Token(TokenType.RIGHT_PAREN, ")", null, line)).invalidNumberOfArguments(argCount, closure.function.arity);
+        }
+        // The script's own frame is not a Lox call, as in the tree-walker.
+        if(frameCount - 1 == context.maxDepth) {
+            throw new VMError(line).error("Stack overflow.");
+        }
+        if(frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+        CallFrame frame = frames[frameCount];
+        if(frame == null) {
+            frame = frames[frameCount] = new CallFrame();
+        }
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = top - argCount - 1;
+        frameCount++;
+    }
+
+
+    // Upvalues
+
+    private Upvalue captureUpvalue(int location) {
+        Upvalue previous = null;
+        Upvalue upvalue = openUpvalues;
+        while(upvalue != null && upvalue.location > location) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+        if(upvalue != null && upvalue.location == location) {
+            return upvalue;
+        }
+        Upvalue created = new Upvalue(location);
+        created.next = upvalue;
+        if(previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+        return created;
+    }
+
+    private void closeUpvalues(int last) {
+        while(openUpvalues != null && openUpvalues.location >= last) {
+            Upvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.location];
+            upvalue.location = -1;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+
+    // Helpers
+
+    private void push(Object value) {
+        if(top == stack.length) {
+            stack = Arrays.copyOf(stack, top * 2);
+        }
+        stack[top++] = value;
+    }
+
+    private static int readShort(byte[] code, int ip) {
+        return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+    }
+
+    private static int line(CallFrame frame, int ip) {
+        return frame.closure.function.chunk.lines[ip - 1];
+    }
+
+    private int currentLine() {
+        CallFrame frame = frames[frameCount - 1];
+        return line(frame, frame.ip);
+    }
+
+    private static Token token(String lexeme, CallFrame frame, int ip) {
+        return new Token(TokenType.IDENTIFIER, lexeme, null, line(frame, ip));
+    }
+
+    private static Token operator(byte instruction, CallFrame frame, int ip) {
+        String lexeme;
+        switch(instruction) {
+            case OpCode.ADD: lexeme = "+"; break;
+            case OpCode.SUBTRACT: lexeme = "-"; break;
+            case OpCode.MULTIPLY: lexeme = "*"; break;
+            case OpCode.DIVIDE: lexeme = "/"; break;
+            case OpCode.GREATER: lexeme = ">"; break;
+            case OpCode.GREATER_EQUAL: lexeme = ">="; break;
+            case OpCode.LESS: lexeme = "<"; break;
+            default: lexeme = "<="; break;
+        }
+        return new Token(TokenType.IDENTIFIER, lexeme, null, line(frame, ip));
+    }
+
+    private static boolean isTruth(Object value) {
+        if(value == null) return false;
+        if(value instanceof Boolean) return (Boolean) value;
+        return true;
+    }
+
+    private static boolean isEqual(Object v, Object u) {
+        v = LoxString.flatten(v);
+        u = LoxString.flatten(u);
+        if(v == null && u == null) {
+            return true;
+        } else if (v == null || u == null) {
+            return false;
+        } else {
+            return v.equals(u);
+        }
+    }
+
+    private static String stringify(Object value) {
+        if(value == null) {
+            return "nil";
+        } else {
+            return value.toString();
+        }
+    }
+
+}
+
+
+class VMFunction {
+    final String name;
+    final int arity;
+    int upvalueCount = 0;
+    final Chunk chunk = new Chunk();
+
+    VMFunction(String name, int arity) {
+        this.name = name;
+        this.arity = arity;
+    }
+
+    public String toString() {
+        return "<fn " + name + ">";
+    }
+}
+
+class VMClosure {
+    final VMFunction function;
+    final Upvalue[] upvalues;
+
+    VMClosure(VMFunction function) {
+        this.function = function;
+        this.upvalues = new Upvalue[function.upvalueCount];
+    }
+
+    public String toString() {
+        return function.toString();
+    }
+}
+
+class Upvalue {
+    int location;
+    Object closed;
+    Upvalue next;
+
+    Upvalue(int location) {
+        this.location = location;
+    }
+}
+
+class VMClass {
+    final String name;
+    final Map<String, VMClosure> methods = new HashMap<>();
+
+    VMClass(String name) {
+        this.name = name;
+    }
+
+    public String toString() {
+        return name;
+    }
+}
+
+class VMInstance {
+    final VMClass klass;
+    final Map<String, Object> fields = new HashMap<>();
+
+    VMInstance(VMClass klass) {
+        this.klass = klass;
+    }
+
+    public String toString() {
+        return klass.name + " instance";
+    }
+}
+
+class VMBoundMethod {
+    final VMInstance receiver;
+    final VMClosure method;
+
+    VMBoundMethod(VMInstance receiver, VMClosure method) {
+        this.receiver = receiver;
+        this.method = method;
+    }
+
+    public String toString() {
+        return method.toString();
+    }
+}
+
+class CallFrame {
+    VMClosure closure;
+    int ip;
+    int base;
+}
+
+
+class VMError extends InterpreterError {
+    VMError(int line) {
+        super(line);
+    }
+
+    public InterpreterError error(String message) {
+        return report(line, message);
+    }
+
+    public InterpreterError fieldNotFound(String name) {
+        return error("The object does contain the field name '" + name + "'.");
+    }
+}